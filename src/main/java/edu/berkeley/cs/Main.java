@@ -3,12 +3,16 @@ package edu.berkeley.cs;
 import com.amazonaws.services.lambda.invoke.LambdaInvokerFactory;
 import edu.berkeley.cs.crail.CrailBenchmarkService;
 import edu.berkeley.cs.server.ControlServer;
+import edu.berkeley.cs.server.LatencyLog;
 import edu.berkeley.cs.server.LogServer;
+import edu.berkeley.cs.server.MetricsServer;
+import edu.berkeley.cs.server.ResultMerger;
 import edu.berkeley.cs.server.ResultServer;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import org.ini4j.Ini;
 
 public class Main {
@@ -60,9 +64,25 @@ public class Main {
     }
   }
 
+  /**
+   * Converts a binary latency log back to the tab-separated text format, by default next to it
+   * with a .txt extension.
+   */
+  private static void convert(String[] args) throws IOException {
+    String in = args[1];
+    String out = args.length > 2 ? args[2] : in.replaceAll("\\.bin$", "") + ".txt";
+    LatencyLog.toText(in, out);
+    System.out.println("[Main] Converted " + in + " to " + out);
+  }
+
   public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length >= 2 && args[0].equalsIgnoreCase("convert")) {
+      convert(args);
+      return;
+    }
     if (args.length != 2) {
       System.err.println("Usage: bench_runner [command] [conf_file]");
+      System.err.println("       bench_runner convert [binary_latency_file] ([text_file])");
       return;
     }
     String command = args[0];
@@ -71,6 +91,7 @@ public class Main {
     Thread logThread;
     Thread controlThread;
     Thread resultThread = null;
+    ResultMerger merger = null;
 
     Ini ini = new Ini();
     ini.load(new File(iniFile));
@@ -79,6 +100,17 @@ public class Main {
     int logPort = Integer.parseInt(conf.getOrDefault("logger_port", "8888"));
     int controlPort = Integer.parseInt(conf.getOrDefault("control_port", "8889"));
     int resultPort = Integer.parseInt(conf.getOrDefault("result_port", "8890"));
+    int metricsPort = Integer.parseInt(conf.getOrDefault("metrics_port", "8891"));
+    String resultDir = conf.getOrDefault("result_dir", "");
+    String logDir = conf.getOrDefault("log_dir", LogServer.DEFAULT_LOG_DIR);
+    long intervalMs = Long.parseLong(conf.getOrDefault("interval_ms", "1000"));
+    // All functions derive their random streams from one seed, logged so the run can be repeated
+    if (!conf.containsKey("seed")) {
+      conf.put("seed", String.valueOf(new Random().nextLong()));
+    }
+    System.out.println("[Main] seed=" + conf.get("seed"));
+    // Local runs keep their results in place unless asked to collect them into result_dir
+    boolean collectResults = !command.equalsIgnoreCase("invoke-local") || !resultDir.isEmpty();
     if (mode.startsWith("scale:")) {
       String[] parts = mode.split(":");
       mode = parts[1];
@@ -87,31 +119,38 @@ public class Main {
       int period = Integer.parseInt(parts[3]);
       int numPeriods = Integer.parseInt(parts[4]);
       int numFunctions = n * numPeriods;
+      conf.put("num_functions", String.valueOf(numFunctions));
       System.out.println("[Main] Running scale benchmark");
       System.out.println("[Main] mode=" + mode + " n=" + n + " period=" + period + " numPeriods=" +
           numPeriods);
-      logThread = new Thread(new LogServer(logPort, numFunctions));
+      logThread = new Thread(new LogServer(logPort, numFunctions, logDir));
       logThread.start();
+      startMetricsServer(conf, metricsPort, numFunctions, intervalMs);
 
-      controlThread = new Thread(new ControlServer(controlPort, numFunctions, numPeriods, period));
+      ControlServer controlServer = new ControlServer(controlPort, numFunctions, numPeriods,
+          period);
+      controlThread = new Thread(controlServer);
       controlThread.start();
 
-      if (!command.equalsIgnoreCase("invoke-local")) {
-        resultThread = new Thread(new ResultServer(resultPort, numFunctions));
+      if (collectResults) {
+        merger = new ResultMerger(resultDir.isEmpty() ? "/tmp" : resultDir,
+            controlServer::getWave, intervalMs);
+        resultThread = new Thread(new ResultServer(resultPort, numFunctions, resultDir, merger));
         resultThread.start();
       }
 
       BenchmarkService[] services = makeServices(command, conf, numFunctions);
       invokeAll(services, conf);
     } else {
-      logThread = new Thread(new LogServer(logPort));
+      logThread = new Thread(new LogServer(logPort, 1, logDir));
       logThread.start();
+      startMetricsServer(conf, metricsPort, 1, intervalMs);
 
       controlThread = new Thread(new ControlServer(controlPort));
       controlThread.start();
 
-      if (!command.equalsIgnoreCase("invoke-local")) {
-        resultThread = new Thread(new ResultServer(resultPort));
+      if (collectResults) {
+        resultThread = new Thread(new ResultServer(resultPort, 1, resultDir));
         resultThread.start();
       }
 
@@ -122,5 +161,25 @@ public class Main {
     if (resultThread != null) {
       resultThread.join();
     }
+    if (merger != null) {
+      merger.finish();
+    }
+  }
+
+  /**
+   * Live metrics are best-effort, so the run neither waits for the server nor fails without it.
+   */
+  private static void startMetricsServer(Map<String, String> conf, int port, int numFunctions,
+      long intervalMs) throws IOException {
+    if (intervalMs <= 0) {
+      return;
+    }
+    long sloP99Us = Long.parseLong(conf.getOrDefault("slo_p99_us", "0"));
+    int sloIntervals = Integer.parseInt(conf.getOrDefault("slo_intervals", "3"));
+    double maxErrorRate = Double.parseDouble(conf.getOrDefault("max_error_rate", "0"));
+    Thread metricsThread = new Thread(new MetricsServer(port, numFunctions, intervalMs, sloP99Us,
+        sloIntervals, maxErrorRate));
+    metricsThread.setDaemon(true);
+    metricsThread.start();
   }
 }
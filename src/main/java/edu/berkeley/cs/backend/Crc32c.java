@@ -0,0 +1,74 @@
+package edu.berkeley.cs.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * CRC32C (Castagnoli) over ByteBuffers using slicing-by-8 tables; java.util.zip.CRC32C is only
+ * available from Java 9 onwards. Buffers are read with absolute gets, so direct buffers are
+ * checksummed in place without copying and without touching their position.
+ */
+public final class Crc32c {
+
+  private static final int POLY = 0x82F63B78;
+  private static final int[][] TABLES = new int[8][256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int j = 0; j < 8; j++) {
+        crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLY : 0);
+      }
+      TABLES[0][i] = crc;
+    }
+    for (int i = 0; i < 256; i++) {
+      for (int t = 1; t < 8; t++) {
+        TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xFF];
+      }
+    }
+  }
+
+  private Crc32c() {
+  }
+
+  /**
+   * Returns the initial CRC state.
+   */
+  public static int init() {
+    return 0xFFFFFFFF;
+  }
+
+  /**
+   * Returns the final CRC value for a CRC state.
+   */
+  public static int finish(int crc) {
+    return ~crc;
+  }
+
+  /**
+   * Folds the 8 bytes of v (little-endian) into the CRC state.
+   */
+  public static int update(int crc, long v) {
+    long x = v ^ (crc & 0xFFFFFFFFL);
+    return TABLES[7][(int) x & 0xFF] ^ TABLES[6][(int) (x >>> 8) & 0xFF]
+        ^ TABLES[5][(int) (x >>> 16) & 0xFF] ^ TABLES[4][(int) (x >>> 24) & 0xFF]
+        ^ TABLES[3][(int) (x >>> 32) & 0xFF] ^ TABLES[2][(int) (x >>> 40) & 0xFF]
+        ^ TABLES[1][(int) (x >>> 48) & 0xFF] ^ TABLES[0][(int) (x >>> 56) & 0xFF];
+  }
+
+  /**
+   * Folds bytes [from, to) of buf into the CRC state.
+   */
+  public static int update(int crc, ByteBuffer buf, int from, int to) {
+    boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+    int i = from;
+    for (; i + 8 <= to; i += 8) {
+      long v = buf.getLong(i);
+      crc = update(crc, bigEndian ? Long.reverseBytes(v) : v);
+    }
+    for (; i < to; i++) {
+      crc = (crc >>> 8) ^ TABLES[0][(crc ^ buf.get(i)) & 0xFF];
+    }
+    return crc;
+  }
+}
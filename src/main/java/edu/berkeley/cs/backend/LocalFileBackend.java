@@ -0,0 +1,395 @@
+package edu.berkeley.cs.backend;
+
+import edu.berkeley.cs.crail.CrailBenchmarkService.Logger;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+/**
+ * A baseline backend on the local file system, for comparing Crail's tiers against local disk and
+ * the page cache on the same host.
+ *
+ * With local_layout = files (the default) each key is a file under local_path, written and read
+ * with AsynchronousFileChannel so that queue_depth operations are really outstanding at once.
+ * With local_layout = packed, keys are numeric indexes into a single pre-allocated region file of
+ * local_capacity objects of the largest size, accessed in place through memory mappings with no
+ * copying: writes produce an object's bytes directly in the mapping, and reads consume (or verify)
+ * them there. Those operations complete when issued, as they only touch the page cache. Keys
+ * must stay below local_capacity (by default twice num_ops), which rules out the latest and
+ * trace distributions.
+ */
+public class LocalFileBackend implements StorageBackend<LocalFileBackend.Slot> {
+
+  private static final String DEFAULT_PATH = "/tmp/crail-bench";
+  private static final String REGION_FILE = "region";
+  // Largest mapping size that keeps each object within one segment
+  private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+  private Path mRoot;
+  private SizeDistribution mSizes;
+  private int mMaxSize;
+  private boolean mVerify;
+  private boolean mPacked;
+  private long mCapacity;
+  private long mObjectsPerSegment;
+  private MappedByteBuffer[] mSegments;
+  // Consumes what packed reads load, so that the loads are not optimized away
+  private volatile long mSink;
+  private PathEncoder mNames;
+  private PathEncoder mDirNames;
+
+  public static class Slot {
+
+    private ByteBuffer buffer;
+    private Payload payload = new Payload();
+  }
+
+  @Override
+  public void init(Properties conf, Logger log, boolean create) throws Exception {
+    mRoot = Paths.get(conf.getProperty("local_path", DEFAULT_PATH));
+    mSizes = SizeDistribution.parse(conf.getProperty("size", "1024"));
+    mMaxSize = mSizes.maxSize();
+    mVerify = Boolean.parseBoolean(conf.getProperty("verify", "false"));
+    long pathCacheKeys = Long.parseLong(conf.getProperty("path_cache_keys", "0"));
+    mNames = new PathEncoder("", pathCacheKeys);
+    mDirNames = new PathEncoder("d", pathCacheKeys);
+    if (mVerify && mSizes.minSize() < Payload.CHECKSUM_SIZE) {
+      throw new IllegalArgumentException("verify requires size >= " + Payload.CHECKSUM_SIZE);
+    }
+
+    String layout = conf.getProperty("local_layout", "files");
+    if (layout.equalsIgnoreCase("packed")) {
+      mPacked = true;
+    } else if (!layout.equalsIgnoreCase("files")) {
+      throw new IllegalArgumentException("Unrecognized local_layout: " + layout);
+    }
+    // Latest inserts keys past the loaded ones (past num_ops in a scale run) and traces hash
+    // non-numeric keys, so neither keeps its keys within a capacity known up front
+    String distribution = conf.getProperty("distribution", "sequential");
+    String name = distribution.split(":")[0];
+    if (mPacked && (name.equalsIgnoreCase("latest") || name.equalsIgnoreCase("trace"))) {
+      throw new IllegalArgumentException("local_layout = packed does not support distribution = "
+          + distribution + ", as its keys are not bounded by local_capacity");
+    }
+
+    if (create) {
+      Files.createDirectories(mRoot);
+      log.info("Path created: " + mRoot);
+    }
+
+    if (mPacked) {
+      int numOps = Integer.parseInt(conf.getProperty("num_ops", "1000"));
+      mCapacity = Long.parseLong(conf.getProperty("local_capacity", String.valueOf(2L * numOps)));
+      mapRegion();
+      log.info("Mapped " + mCapacity + " objects of up to " + mMaxSize + " bytes in "
+          + mSegments.length + " segments");
+    }
+  }
+
+  @Override
+  public Slot allocateSlot() {
+    Slot slot = new Slot();
+    if (!mPacked) {
+      slot.buffer = ByteBuffer.allocateDirect(mMaxSize);
+    }
+    return slot;
+  }
+
+  @Override
+  public void freeSlot(Slot slot) {
+    // Direct buffers are released by the garbage collector
+  }
+
+  @Override
+  public PendingOp writeAsync(long key, int size, Slot slot) throws Exception {
+    ByteBuffer buf = mPacked ? region(key, size) : slot.buffer;
+    buf.clear().limit(size);
+    if (mVerify) {
+      slot.payload.begin(key, size);
+      slot.payload.stamp(buf, size);
+    } else if (mPacked) {
+      fill(buf);
+    }
+    if (mPacked) {
+      return PendingOp.DONE;
+    }
+    AsynchronousFileChannel channel = AsynchronousFileChannel.open(path(key),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    return new PendingFileIo(channel, slot, key, true);
+  }
+
+  @Override
+  public PendingOp readAsync(long key, int size, Slot slot) throws Exception {
+    if (mPacked) {
+      ByteBuffer region = region(key, size);
+      if (mVerify) {
+        checkRead(key, size, slot, region, region.limit());
+      } else {
+        consume(region);
+      }
+      return PendingOp.DONE;
+    }
+    slot.buffer.clear().limit(size);
+    AsynchronousFileChannel channel;
+    try {
+      channel = AsynchronousFileChannel.open(path(key), StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      throw new FileNotFoundException("File does not exist: " + path(key));
+    }
+    return new PendingFileIo(channel, slot, key, false);
+  }
+
+  @Override
+  public PendingOp deleteAsync(long key) throws Exception {
+    checkFileLayout("delete");
+    try {
+      Files.delete(path(key));
+    } catch (NoSuchFileException e) {
+      throw new FileNotFoundException("File does not exist: " + path(key));
+    }
+    return PendingOp.DONE;
+  }
+
+  @Override
+  public PendingOp mkdirAsync(long key) throws Exception {
+    checkFileLayout("mkdir");
+    Files.createDirectories(mRoot.resolve(mDirNames.encode(key)));
+    return PendingOp.DONE;
+  }
+
+  @Override
+  public PendingOp touchAsync(long key) throws Exception {
+    checkFileLayout("touch");
+    FileChannel.open(path(key), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING).close();
+    return PendingOp.DONE;
+  }
+
+  @Override
+  public PendingOp lookupAsync(long key) throws Exception {
+    checkFileLayout("lookup");
+    Path path = path(key);
+    if (!Files.exists(path)) {
+      throw new FileNotFoundException("File does not exist: " + path);
+    }
+    return PendingOp.DONE;
+  }
+
+  @Override
+  public PendingOp listAsync() throws Exception {
+    checkFileLayout("list");
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(mRoot)) {
+      for (Path ignored : entries) {
+        // Enumerate only
+      }
+    }
+    return PendingOp.DONE;
+  }
+
+  @Override
+  public boolean supports(String op) {
+    // The packed layout has no per-key files, so it only reads and writes objects
+    return !mPacked || op.equals("write") || op.equals("read");
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    mSegments = null;
+    // local_path itself, and anything else in it, are left alone, as it may be shared (e.g., /tmp)
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(mRoot, this::isOwned)) {
+      for (Path entry : entries) {
+        try {
+          Files.deleteIfExists(entry);
+        } catch (DirectoryNotEmptyException e) {
+          // Not made by mkdir, which only creates empty directories
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    mSegments = null;
+  }
+
+  private void mapRegion() throws IOException {
+    mObjectsPerSegment = Math.max(1, MAX_SEGMENT_SIZE / Math.max(1, mMaxSize));
+    int numSegments = (int) ((mCapacity + mObjectsPerSegment - 1) / mObjectsPerSegment);
+    mSegments = new MappedByteBuffer[numSegments];
+    try (RandomAccessFile file = new RandomAccessFile(mRoot.resolve(REGION_FILE).toFile(), "rw")) {
+      file.setLength(mCapacity * mMaxSize);
+      FileChannel channel = file.getChannel();
+      for (int i = 0; i < numSegments; i++) {
+        long first = i * mObjectsPerSegment;
+        long count = Math.min(mObjectsPerSegment, mCapacity - first);
+        mSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE, first * mMaxSize,
+            count * mMaxSize);
+      }
+    }
+  }
+
+  private Path path(long key) {
+    return mRoot.resolve(mNames.encode(key));
+  }
+
+  /**
+   * Returns true for the entries of local_path that the backend creates: the region file of the
+   * packed layout, or else the files of keys and the directories of mkdir operations.
+   */
+  private boolean isOwned(Path entry) {
+    String name = entry.getFileName().toString();
+    if (mPacked) {
+      return name.equals(REGION_FILE);
+    }
+    int first = name.startsWith("d") ? 1 : 0;
+    if (name.length() == first) {
+      return false;
+    }
+    for (int i = first; i < name.length(); i++) {
+      if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a view of the mapping holding the object for key, which starts at a multiple of the
+   * largest size and spans size bytes, indexed from the object's first byte.
+   */
+  private ByteBuffer region(long idx, int size) throws IOException {
+    if (idx < 0 || idx >= mCapacity) {
+      throw new IOException("Key " + idx + " is outside local_capacity=" + mCapacity);
+    }
+    ByteBuffer region = mSegments[(int) (idx / mObjectsPerSegment)].duplicate();
+    int offset = (int) ((idx % mObjectsPerSegment) * mMaxSize);
+    region.limit(offset + size).position(offset);
+    return region.slice();
+  }
+
+  /**
+   * Stores the (unverified, hence arbitrary) bytes of an object in place.
+   */
+  private static void fill(ByteBuffer region) {
+    int len = region.limit();
+    int i = 0;
+    for (; i + 8 <= len; i += 8) {
+      region.putLong(i, 0L);
+    }
+    for (; i < len; i++) {
+      region.put(i, (byte) 0);
+    }
+  }
+
+  /**
+   * Loads every byte of an object in place, as a reader that uses the object would.
+   */
+  private void consume(ByteBuffer region) {
+    int len = region.limit();
+    long sum = 0;
+    int i = 0;
+    for (; i + 8 <= len; i += 8) {
+      sum += region.getLong(i);
+    }
+    for (; i < len; i++) {
+      sum += region.get(i);
+    }
+    mSink = sum;
+  }
+
+  /**
+   * Guards operations that supports() rules out for the packed layout, which the benchmark never
+   * issues.
+   */
+  private void checkFileLayout(String op) {
+    if (mPacked) {
+      throw new IllegalStateException(op + " is not supported by the packed layout");
+    }
+  }
+
+  private void checkRead(long key, int size, Slot slot, ByteBuffer buf, int len)
+      throws IOException {
+    if (len != size) {
+      throw new IOException("Short read for key " + key + ": " + len + "/" + size);
+    }
+    if (mVerify) {
+      slot.payload.begin(key, size);
+      if (!slot.payload.check(buf, len)) {
+        throw new IOException("Checksum mismatch for key " + key);
+      }
+    }
+  }
+
+  /**
+   * Transfers a whole object between a slot and a file, reissuing the channel operation until the
+   * buffer is drained (write) or filled (read).
+   */
+  private class PendingFileIo implements PendingOp {
+
+    private AsynchronousFileChannel channel;
+    private Slot slot;
+    private long key;
+    private boolean write;
+    private long position;
+    private Future<Integer> result;
+
+    PendingFileIo(AsynchronousFileChannel channel, Slot slot, long key, boolean write)
+        throws IOException {
+      this.channel = channel;
+      this.slot = slot;
+      this.key = key;
+      this.write = write;
+      try {
+        issue();
+      } catch (RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    @Override
+    public boolean poll() throws Exception {
+      if (!result.isDone()) {
+        return false;
+      }
+      try {
+        int n = result.get();
+        if (n > 0) {
+          position += n;
+          if (slot.buffer.hasRemaining()) {
+            issue();
+            return false;
+          }
+        }
+      } catch (Exception e) {
+        channel.close();
+        throw e;
+      }
+      channel.close();
+      if (!write) {
+        checkRead(key, slot.buffer.limit(), slot, slot.buffer, (int) position);
+      } else if (position != slot.buffer.limit()) {
+        throw new IOException(
+            "Short write for key " + key + ": " + position + "/" + slot.buffer.limit());
+      }
+      return true;
+    }
+
+    private void issue() {
+      result = write ? channel.write(slot.buffer, position) : channel.read(slot.buffer, position);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package edu.berkeley.cs.backend;
+
+import edu.berkeley.cs.crail.CrailBenchmarkService.Logger;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-process stand-in for a store, for measuring the overhead of the harness itself and for
+ * running the benchmark without a Crail cluster or network access.
+ *
+ * Every operation completes memory_latency_us after it is issued, plus the time to move the
+ * object at memory_bandwidth_mbps (MB/s) for data operations; both default to 0, i.e., operations
+ * complete as soon as they are issued. With memory_store_data = false only the set of keys is
+ * kept, so reads and writes move no data at all.
+ */
+public class MemoryBackend implements StorageBackend<MemoryBackend.Slot> {
+
+  private static final ByteBuffer NO_DATA = ByteBuffer.allocate(0);
+
+  private ConcurrentHashMap<String, ByteBuffer> mObjects = new ConcurrentHashMap<>();
+  private PathEncoder mNames;
+  private PathEncoder mDirNames;
+  private SizeDistribution mSizes;
+  private boolean mVerify;
+  private boolean mStoreData;
+  private long mLatencyNs;
+  private double mTransferNsPerByte;
+
+  public static class Slot {
+
+    private ByteBuffer buffer;
+    private Payload payload = new Payload();
+  }
+
+  @Override
+  public void init(Properties conf, Logger log, boolean create) throws Exception {
+    mSizes = SizeDistribution.parse(conf.getProperty("size", "1024"));
+    mVerify = Boolean.parseBoolean(conf.getProperty("verify", "false"));
+    long pathCacheKeys = Long.parseLong(conf.getProperty("path_cache_keys", "0"));
+    mNames = new PathEncoder("", pathCacheKeys);
+    mDirNames = new PathEncoder("d", pathCacheKeys);
+    mStoreData = Boolean.parseBoolean(conf.getProperty("memory_store_data", "true"));
+    if (mVerify && (!mStoreData || mSizes.minSize() < Payload.CHECKSUM_SIZE)) {
+      throw new IllegalArgumentException(
+          "verify requires memory_store_data = true and size >= " + Payload.CHECKSUM_SIZE);
+    }
+    mLatencyNs = Long.parseLong(conf.getProperty("memory_latency_us", "0")) * 1000;
+    double bandwidthMBps = Double.parseDouble(conf.getProperty("memory_bandwidth_mbps", "0"));
+    mTransferNsPerByte = bandwidthMBps > 0 ? 1000.0 / bandwidthMBps : 0.0;
+    log.info("In-memory store: latency=" + mLatencyNs / 1000 + "us, bandwidth=" + bandwidthMBps
+        + "MB/s, store_data=" + mStoreData);
+  }
+
+  @Override
+  public Slot allocateSlot() {
+    Slot slot = new Slot();
+    slot.buffer = ByteBuffer.allocateDirect(mSizes.maxSize());
+    return slot;
+  }
+
+  @Override
+  public void freeSlot(Slot slot) {
+    // Direct buffers are released by the garbage collector
+  }
+
+  @Override
+  public PendingOp writeAsync(long key, int size, Slot slot) {
+    long issueNs = System.nanoTime();
+    put(key, size, slot);
+    return complete(issueNs, mLatencyNs + transferNs(size));
+  }
+
+  @Override
+  public PendingOp readAsync(long key, int size, Slot slot) throws Exception {
+    long issueNs = System.nanoTime();
+    ByteBuffer object = get(key);
+    if (mStoreData) {
+      if (object.capacity() < size) {
+        throw new IOException("Short read for key " + key + ": " + object.capacity() + "/" + size);
+      }
+      slot.buffer.clear();
+      synchronized (object) {
+        ByteBuffer src = object.duplicate();
+        src.clear().limit(size);
+        slot.buffer.put(src);
+      }
+      if (mVerify) {
+        slot.payload.begin(key, size);
+        if (!slot.payload.check(slot.buffer, size)) {
+          throw new IOException("Checksum mismatch for key " + key);
+        }
+      }
+    }
+    return complete(issueNs, mLatencyNs + transferNs(size));
+  }
+
+  @Override
+  public PendingOp deleteAsync(long key) throws Exception {
+    long issueNs = System.nanoTime();
+    if (mObjects.remove(mNames.encode(key)) == null) {
+      throw new FileNotFoundException("File does not exist: " + key);
+    }
+    return complete(issueNs, mLatencyNs);
+  }
+
+  @Override
+  public PendingOp mkdirAsync(long key) {
+    long issueNs = System.nanoTime();
+    mObjects.put(mDirNames.encode(key), NO_DATA);
+    return complete(issueNs, mLatencyNs);
+  }
+
+  @Override
+  public PendingOp touchAsync(long key) {
+    long issueNs = System.nanoTime();
+    mObjects.put(mNames.encode(key), NO_DATA);
+    return complete(issueNs, mLatencyNs);
+  }
+
+  @Override
+  public PendingOp lookupAsync(long key) throws Exception {
+    long issueNs = System.nanoTime();
+    get(key);
+    return complete(issueNs, mLatencyNs);
+  }
+
+  @Override
+  public PendingOp listAsync() {
+    long issueNs = System.nanoTime();
+    for (String ignored : mObjects.keySet()) {
+      // Enumerate only
+    }
+    return complete(issueNs, mLatencyNs);
+  }
+
+  @Override
+  public void destroy() {
+    mObjects.clear();
+  }
+
+  @Override
+  public void close() {
+    mObjects.clear();
+  }
+
+  private void put(long key, int size, Slot slot) {
+    String name = mNames.encode(key);
+    if (!mStoreData) {
+      mObjects.put(name, NO_DATA);
+      return;
+    }
+    slot.buffer.clear().limit(size);
+    if (mVerify) {
+      slot.payload.begin(key, size);
+      slot.payload.stamp(slot.buffer, size);
+    }
+    ByteBuffer object = mObjects.get(name);
+    if (object == null || object.capacity() != size) {
+      object = ByteBuffer.allocateDirect(size);
+    }
+    synchronized (object) {
+      object.clear();
+      object.put(slot.buffer);
+    }
+    mObjects.put(name, object);
+  }
+
+  private ByteBuffer get(long key) throws FileNotFoundException {
+    ByteBuffer object = mObjects.get(mNames.encode(key));
+    if (object == null) {
+      throw new FileNotFoundException("File does not exist: " + key);
+    }
+    return object;
+  }
+
+  private long transferNs(int size) {
+    return (long) (size * mTransferNsPerByte);
+  }
+
+  private static PendingOp complete(long issueNs, long delayNs) {
+    if (delayNs == 0) {
+      return PendingOp.DONE;
+    }
+    long deadlineNs = issueNs + delayNs;
+    return () -> System.nanoTime() - deadlineNs >= 0;
+  }
+}
@@ -0,0 +1,85 @@
+package edu.berkeley.cs.backend;
+
+/**
+ * Turns numeric keys into paths (a fixed prefix followed by the key in decimal) with little
+ * garbage per operation. Paths are built in a per-thread buffer, which costs only the resulting
+ * string. Optionally, the path of a key below cachedKeys is built once, on first use, and then
+ * reused, which saves even that; the cache takes memory only in chunks of CHUNK_SIZE keys that
+ * are actually used, but a cached path costs about 64 bytes plus twice its length for the rest
+ * of the run, so it should only be enabled for key spaces that comfortably fit in memory.
+ *
+ * Encoders are thread-safe: threads racing to fill in the same entry build equal strings, so
+ * either of them may win.
+ */
+public final class PathEncoder {
+
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  // Bounds the chunk index to an int
+  private static final long MAX_CACHED_KEYS = (long) Integer.MAX_VALUE << CHUNK_BITS;
+  // Digits of Long.MAX_VALUE
+  private static final int MAX_DIGITS = 19;
+
+  private final char[] prefix;
+  private final long cachedKeys;
+  private final String[][] chunks;
+  private final ThreadLocal<char[]> buffers;
+
+  public PathEncoder(String prefix) {
+    this(prefix, 0);
+  }
+
+  public PathEncoder(String prefix, long cachedKeys) {
+    if (cachedKeys < 0 || cachedKeys > MAX_CACHED_KEYS) {
+      throw new IllegalArgumentException("Cannot cache the paths of " + cachedKeys + " keys");
+    }
+    this.prefix = prefix.toCharArray();
+    this.cachedKeys = cachedKeys;
+    this.chunks = new String[(int) ((cachedKeys + CHUNK_SIZE - 1) >>> CHUNK_BITS)][];
+    this.buffers = ThreadLocal.withInitial(() -> {
+      char[] buf = new char[this.prefix.length + MAX_DIGITS];
+      System.arraycopy(this.prefix, 0, buf, 0, this.prefix.length);
+      return buf;
+    });
+  }
+
+  public String encode(long key) {
+    if (key < 0) {
+      throw new IllegalArgumentException("Negative key: " + key);
+    }
+    if (key >= cachedKeys) {
+      return build(key);
+    }
+    String[] chunk = chunks[(int) (key >>> CHUNK_BITS)];
+    if (chunk == null) {
+      chunk = new String[CHUNK_SIZE];
+      chunks[(int) (key >>> CHUNK_BITS)] = chunk;
+    }
+    int idx = (int) (key & (CHUNK_SIZE - 1));
+    String path = chunk[idx];
+    if (path == null) {
+      path = build(key);
+      chunk[idx] = path;
+    }
+    return path;
+  }
+
+  private String build(long key) {
+    char[] buf = buffers.get();
+    int end = prefix.length + digits(key);
+    int pos = end;
+    do {
+      buf[--pos] = (char) ('0' + key % 10);
+      key /= 10;
+    } while (key != 0);
+    return new String(buf, 0, end);
+  }
+
+  private static int digits(long key) {
+    int n = 1;
+    for (long bound = 10; n < MAX_DIGITS && key >= bound; bound *= 10) {
+      n++;
+    }
+    return n;
+  }
+}
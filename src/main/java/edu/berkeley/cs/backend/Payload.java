@@ -0,0 +1,103 @@
+package edu.berkeley.cs.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Self-verifying object contents for the verify mode. An object of n bytes holds n - 4 bytes of
+ * pseudo-random content derived from its key, followed by the CRC32C of the key seed and that
+ * content. A reader can therefore detect both corruption and objects returned for the wrong key
+ * by checksumming its buffers in place.
+ *
+ * An object may be stamped or checked in several consecutive pieces (e.g., the chunks of a
+ * streaming transfer); a Payload tracks the position and running checksum between pieces, and is
+ * meant to be reused across objects.
+ */
+public final class Payload {
+
+  public static final int CHECKSUM_SIZE = 4;
+
+  private long seed;
+  private long size;
+  private long offset;
+  private int crc;
+
+  /**
+   * Starts stamping or checking the object of the given size for key.
+   */
+  public void begin(long key, long size) {
+    this.seed = mix(key * 0x9E3779B97F4A7C15L + 1);
+    this.size = size;
+    this.offset = 0;
+    this.crc = Crc32c.update(Crc32c.init(), seed);
+  }
+
+  /**
+   * Fills bytes [0, len) of buf with the next len bytes of the object.
+   */
+  public void stamp(ByteBuffer buf, int len) {
+    int contentEnd = contentEnd(len);
+    fill(buf, contentEnd);
+    crc = Crc32c.update(crc, buf, 0, contentEnd);
+    for (int i = contentEnd; i < len; i++) {
+      buf.put(i, checksumByte(offset + i));
+    }
+    offset += len;
+  }
+
+  /**
+   * Returns true if bytes [0, len) of buf match the next len bytes of the object. A mismatch in
+   * the content is only detected once the checksum bytes at the end of the object are checked.
+   */
+  public boolean check(ByteBuffer buf, int len) {
+    int contentEnd = contentEnd(len);
+    crc = Crc32c.update(crc, buf, 0, contentEnd);
+    for (int i = contentEnd; i < len; i++) {
+      if (buf.get(i) != checksumByte(offset + i)) {
+        return false;
+      }
+    }
+    offset += len;
+    return true;
+  }
+
+  private int contentEnd(int len) {
+    return (int) Math.max(0, Math.min(len, size - CHECKSUM_SIZE - offset));
+  }
+
+  private byte checksumByte(long pos) {
+    int idx = (int) (pos - (size - CHECKSUM_SIZE));
+    return (byte) (Crc32c.finish(crc) >>> (24 - 8 * idx));
+  }
+
+  // Content byte at object offset o is byte (o % 8) of word(o / 8), least significant first.
+  private void fill(ByteBuffer buf, int end) {
+    boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+    int i = 0;
+    for (; i < end && ((offset + i) & 7) != 0; i++) {
+      buf.put(i, contentByte(offset + i));
+    }
+    for (; i + 8 <= end; i += 8) {
+      long w = word((offset + i) >>> 3);
+      buf.putLong(i, bigEndian ? Long.reverseBytes(w) : w);
+    }
+    for (; i < end; i++) {
+      buf.put(i, contentByte(offset + i));
+    }
+  }
+
+  private byte contentByte(long pos) {
+    return (byte) (word(pos >>> 3) >>> (8 * (pos & 7)));
+  }
+
+  private long word(long idx) {
+    return mix(seed + idx * 0x9E3779B97F4A7C15L);
+  }
+
+  // SplitMix64 finalizer
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
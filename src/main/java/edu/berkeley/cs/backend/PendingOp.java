@@ -0,0 +1,20 @@
+package edu.berkeley.cs.backend;
+
+/**
+ * An in-flight storage operation that is driven to completion by polling, so that a single
+ * thread can keep several operations outstanding at once.
+ */
+public interface PendingOp {
+
+  /**
+   * An operation that had already completed when it was issued.
+   */
+  PendingOp DONE = () -> true;
+
+  /**
+   * Advances the operation as far as possible without blocking.
+   *
+   * @return true once the operation has completed
+   */
+  boolean poll() throws Exception;
+}
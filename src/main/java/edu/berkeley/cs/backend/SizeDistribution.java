@@ -0,0 +1,215 @@
+package edu.berkeley.cs.backend;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Object sizes, given by the size setting as one of:
+ * <ul>
+ * <li>n: every object has n bytes;</li>
+ * <li>uniform:min:max: sizes uniform in [min, max];</li>
+ * <li>lognormal:median:sigma:min:max: log-normal sizes with the given median and shape parameter,
+ * clamped to [min, max];</li>
+ * <li>histogram:path: an empirical distribution, read from a file with one "size weight" line
+ * per size, each size being drawn with probability proportional to its weight.</li>
+ * </ul>
+ * The size of an object is a function of its key alone, so that every reader, in any function,
+ * knows the length the object was written with.
+ */
+public abstract class SizeDistribution {
+
+  // Number of size classes: class c holds sizes in [2^(c-1), 2^c), class 0 only size 0
+  public static final int NUM_CLASSES = 32;
+  // Keys sampled to estimate the mean size
+  private static final int MEAN_SAMPLES = 1 << 16;
+
+  private final int minSize;
+  private final int maxSize;
+  private double meanSize = -1;
+
+  SizeDistribution(int minSize, int maxSize) {
+    if (minSize < 0 || maxSize < minSize) {
+      throw new IllegalArgumentException("Invalid size range: [" + minSize + ", " + maxSize + "]");
+    }
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+  }
+
+  public static SizeDistribution parse(String spec) throws IOException {
+    String[] parts = spec.split(":");
+    String name = parts[0];
+    if (name.equalsIgnoreCase("uniform")) {
+      return new Uniform(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+    } else if (name.equalsIgnoreCase("lognormal")) {
+      return new LogNormal(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+          Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+    } else if (name.equalsIgnoreCase("histogram")) {
+      return Histogram.read(spec.substring("histogram:".length()));
+    }
+    return new Fixed(Integer.parseInt(spec));
+  }
+
+  public abstract int sizeOf(long key);
+
+  public int minSize() {
+    return minSize;
+  }
+
+  public int maxSize() {
+    return maxSize;
+  }
+
+  public boolean isFixed() {
+    return false;
+  }
+
+  /**
+   * Returns the mean object size, estimated over the first keys.
+   */
+  public synchronized double meanSize() {
+    if (meanSize < 0) {
+      double sum = 0.0;
+      for (int k = 0; k < MEAN_SAMPLES; k++) {
+        sum += sizeOf(k);
+      }
+      meanSize = sum / MEAN_SAMPLES;
+    }
+    return meanSize;
+  }
+
+  public static int sizeClass(int size) {
+    return 32 - Integer.numberOfLeadingZeros(size);
+  }
+
+  /**
+   * Returns the smallest size in class c.
+   */
+  public static long classMin(int c) {
+    return c == 0 ? 0 : 1L << (c - 1);
+  }
+
+  /**
+   * Returns a number in [0, 1) derived from key and stream, uniformly distributed over keys.
+   */
+  static double uniform(long key, long stream) {
+    long z = key * 0x9E3779B97F4A7C15L + stream * 0xD1B54A32D192ED03L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return ((z ^ (z >>> 31)) >>> 11) * 0x1.0p-53;
+  }
+
+  private static class Fixed extends SizeDistribution {
+
+    Fixed(int size) {
+      super(size, size);
+    }
+
+    @Override
+    public int sizeOf(long key) {
+      return maxSize();
+    }
+
+    @Override
+    public boolean isFixed() {
+      return true;
+    }
+
+    @Override
+    public double meanSize() {
+      return maxSize();
+    }
+  }
+
+  private static class Uniform extends SizeDistribution {
+
+    Uniform(int min, int max) {
+      super(min, max);
+    }
+
+    @Override
+    public int sizeOf(long key) {
+      return minSize() + (int) (uniform(key, 1) * ((long) maxSize() - minSize() + 1));
+    }
+  }
+
+  private static class LogNormal extends SizeDistribution {
+
+    private final double mu;
+    private final double sigma;
+
+    LogNormal(double median, double sigma, int min, int max) {
+      super(min, max);
+      if (median <= 0 || sigma < 0) {
+        throw new IllegalArgumentException(
+            "Invalid log-normal parameters: median=" + median + ", sigma=" + sigma);
+      }
+      this.mu = Math.log(median);
+      this.sigma = sigma;
+    }
+
+    @Override
+    public int sizeOf(long key) {
+      // Box-Muller, from two independent uniforms of the key
+      double z = Math.sqrt(-2.0 * Math.log(1.0 - uniform(key, 1)))
+          * Math.cos(2.0 * Math.PI * uniform(key, 2));
+      double size = Math.exp(mu + sigma * z);
+      return (int) Math.max(minSize(), Math.min(maxSize(), Math.round(size)));
+    }
+  }
+
+  private static class Histogram extends SizeDistribution {
+
+    private final int[] sizes;
+    private final double[] cumulative;
+
+    private Histogram(int[] sizes, double[] cumulative) {
+      super(Arrays.stream(sizes).min().getAsInt(), Arrays.stream(sizes).max().getAsInt());
+      this.sizes = sizes;
+      this.cumulative = cumulative;
+    }
+
+    static Histogram read(String path) throws IOException {
+      List<Integer> sizes = new ArrayList<>();
+      List<Double> weights = new ArrayList<>();
+      try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+          String[] fields = line.split("[\\s,]+");
+          if (fields.length != 2 || Double.parseDouble(fields[1]) < 0) {
+            throw new IOException(path + ": malformed size histogram line: " + line);
+          }
+          sizes.add(Integer.parseInt(fields[0]));
+          weights.add(Double.parseDouble(fields[1]));
+        }
+      }
+      double total = weights.stream().mapToDouble(Double::doubleValue).sum();
+      if (total <= 0) {
+        throw new IOException(path + ": empty size histogram");
+      }
+      int[] s = new int[sizes.size()];
+      double[] cumulative = new double[sizes.size()];
+      double sum = 0.0;
+      for (int i = 0; i < s.length; i++) {
+        s[i] = sizes.get(i);
+        sum += weights.get(i);
+        cumulative[i] = sum / total;
+      }
+      return new Histogram(s, cumulative);
+    }
+
+    @Override
+    public int sizeOf(long key) {
+      int idx = Arrays.binarySearch(cumulative, uniform(key, 1));
+      idx = idx < 0 ? -idx - 1 : idx + 1;
+      return sizes[Math.min(idx, sizes.length - 1)];
+    }
+  }
+}
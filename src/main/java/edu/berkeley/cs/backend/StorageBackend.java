@@ -0,0 +1,87 @@
+package edu.berkeley.cs.backend;
+
+import edu.berkeley.cs.crail.CrailBenchmarkService.Logger;
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A key-value store that the benchmark can drive. Keys are non-negative numbers; a backend is free
+ * to map them onto its own namespace (e.g., files under a base path, see {@link PathEncoder}).
+ *
+ * Every operation is available asynchronously as a {@link PendingOp}, so the benchmark can keep
+ * several in flight from one thread. Data operations go through a slot of type S, which holds the
+ * backend's per-operation state such as its buffers; the benchmark allocates one slot per
+ * in-flight operation, never shares a slot between outstanding operations, and otherwise treats
+ * it as opaque.
+ *
+ * An operation on a key that does not exist fails with a {@link java.io.FileNotFoundException},
+ * when issued or when polled; the benchmark counts it as a miss rather than an error.
+ */
+public interface StorageBackend<S> extends Closeable {
+
+  void init(Properties conf, Logger log, boolean create) throws Exception;
+
+  S allocateSlot() throws Exception;
+
+  void freeSlot(S slot) throws Exception;
+
+  /**
+   * Writes an object of size bytes for key. The benchmark passes the size that the run's size
+   * setting gives the key, except when replaying a trace that records its own sizes; a size is
+   * never larger than the setting's largest size.
+   */
+  PendingOp writeAsync(long key, int size, S slot) throws Exception;
+
+  /**
+   * Reads the first size bytes of the object for key, with size as for writeAsync.
+   */
+  PendingOp readAsync(long key, int size, S slot) throws Exception;
+
+  PendingOp deleteAsync(long key) throws Exception;
+
+  PendingOp mkdirAsync(long key) throws Exception;
+
+  PendingOp touchAsync(long key) throws Exception;
+
+  PendingOp lookupAsync(long key) throws Exception;
+
+  PendingOp listAsync() throws Exception;
+
+  /**
+   * Returns true if the backend, as configured by init, implements op, named like the benchmark's
+   * phases (e.g., "write" or "list"). The benchmark checks the operations a run needs before
+   * running any of them, so that it never issues one that the backend does not support.
+   */
+  default boolean supports(String op) {
+    return true;
+  }
+
+  default void write(long key, int size, S slot) throws Exception {
+    complete(writeAsync(key, size, slot));
+  }
+
+  default void read(long key, int size, S slot) throws Exception {
+    complete(readAsync(key, size, slot));
+  }
+
+  default void delete(long key) throws Exception {
+    complete(deleteAsync(key));
+  }
+
+  /**
+   * Returns backend-specific counters (e.g., cache hits) to report with the results.
+   */
+  default Map<String, Long> stats() {
+    return Collections.emptyMap();
+  }
+
+  void destroy() throws Exception;
+
+  static void complete(PendingOp op) throws Exception {
+    while (!op.poll()) {
+      Thread.yield();
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package edu.berkeley.cs.crail;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Intended send times for an open-loop client issuing requests at a fixed mean rate, with either
+ * constant or exponentially distributed (Poisson process) inter-arrival times. Times are in
+ * nanoseconds on the same clock as the caller.
+ */
+class ArrivalSchedule {
+
+  private double meanIntervalNs;
+  private boolean poisson;
+  private double nextNs;
+
+  ArrivalSchedule(double opsPerSec, boolean poisson, long startNs) {
+    this.meanIntervalNs = 1e9 / opsPerSec;
+    this.poisson = poisson;
+    this.nextNs = startNs;
+  }
+
+  /**
+   * Returns the intended send time of the next request without consuming it.
+   */
+  long peek() {
+    return (long) nextNs;
+  }
+
+  /**
+   * Consumes the next request's send time and schedules the one after it.
+   */
+  long advance() {
+    long sendNs = (long) nextNs;
+    if (poisson) {
+      nextNs += -meanIntervalNs * Math.log(1.0 - ThreadLocalRandom.current().nextDouble());
+    } else {
+      nextNs += meanIntervalNs;
+    }
+    return sendNs;
+  }
+}
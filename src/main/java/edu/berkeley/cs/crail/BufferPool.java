@@ -0,0 +1,208 @@
+package edu.berkeley.cs.crail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.crail.CrailBuffer;
+import org.apache.crail.CrailStore;
+import org.apache.crail.memory.OffHeapBuffer;
+
+/**
+ * A pool of off-heap buffers for object transfers, by size class: class c holds buffers of
+ * buffer_size * 2^c bytes, so that operations reuse buffers across keys, object sizes and phases
+ * instead of allocating direct memory. Buffers of buffer_size come from the store, which may have
+ * registered them with the network; larger ones are allocated directly.
+ *
+ * Idle buffers are kept in free lists striped by thread, so that workers, which each use their
+ * own slots, rarely contend. The pool holds at most capBytes of buffers (0 for no limit); once
+ * that is reached, idle buffers of other classes are released to make room, and acquire fails if
+ * there are none.
+ */
+class BufferPool {
+
+  private static final int NUM_STRIPES = 16;
+  // Enough classes to reach the largest buffer from any buffer_size
+  private static final int NUM_CLASSES = 32;
+
+  private final CrailStore store;
+  private final int minSize;
+  private final long capBytes;
+  private final ArrayDeque<CrailBuffer>[][] idle;
+  private final AtomicLong inUseBytes = new AtomicLong();
+  private final AtomicLong inUseHighWater = new AtomicLong();
+  private final LongAdder reuses = new LongAdder();
+  private long heldBytes;
+  private long heldHighWater;
+  private long allocations;
+  private long evictions;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  BufferPool(CrailStore store, int minSize, long capBytes) {
+    this.store = store;
+    this.minSize = minSize;
+    this.capBytes = capBytes;
+    this.idle = (ArrayDeque<CrailBuffer>[][]) new ArrayDeque[NUM_STRIPES][NUM_CLASSES];
+    for (ArrayDeque<CrailBuffer>[] stripe : idle) {
+      for (int c = 0; c < NUM_CLASSES; c++) {
+        stripe[c] = new ArrayDeque<>();
+      }
+    }
+  }
+
+  /**
+   * Allocates an idle buffer of every class up to the one that holds maxSize bytes, smallest
+   * first and as long as they fit under the cap, so that the first operations on objects of each
+   * size do not pay for allocating direct memory.
+   */
+  void preallocate(int maxSize) throws Exception {
+    for (int c = 0; c <= sizeClass(maxSize); c++) {
+      synchronized (this) {
+        if (capBytes > 0 && heldBytes + classSize(c) > capBytes) {
+          return;
+        }
+      }
+      release(acquire(classSize(c)));
+    }
+  }
+
+  /**
+   * Returns a cleared buffer of at least size bytes, of the smallest class that holds them.
+   */
+  CrailBuffer acquire(int size) throws Exception {
+    int c = sizeClass(size);
+    int home = stripe();
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      ArrayDeque<CrailBuffer> free = idle[(home + i) % NUM_STRIPES][c];
+      CrailBuffer buffer;
+      synchronized (free) {
+        buffer = free.pollLast();
+      }
+      if (buffer != null) {
+        reuses.increment();
+        markInUse(buffer.capacity());
+        return buffer.clear();
+      }
+    }
+    int bytes = classSize(c);
+    reserve(c, bytes);
+    CrailBuffer buffer;
+    try {
+      buffer = c == 0 ? store.allocateBuffer()
+          : OffHeapBuffer.wrap(ByteBuffer.allocateDirect(bytes));
+    } catch (Exception | OutOfMemoryError e) {
+      unreserve(bytes);
+      throw e;
+    }
+    markInUse(bytes);
+    return buffer;
+  }
+
+  void release(CrailBuffer buffer) {
+    inUseBytes.addAndGet(-buffer.capacity());
+    ArrayDeque<CrailBuffer> free = idle[stripe()][sizeClass(buffer.capacity())];
+    synchronized (free) {
+      free.addLast(buffer);
+    }
+  }
+
+  /**
+   * Returns true if buffer is of the class that acquire would pick for size bytes.
+   */
+  boolean fits(CrailBuffer buffer, int size) {
+    return sizeClass(buffer.capacity()) == sizeClass(size);
+  }
+
+  synchronized Map<String, Long> stats() {
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("buffer_pool_bytes", heldBytes);
+    stats.put("buffer_pool_high_water_bytes", heldHighWater);
+    stats.put("buffer_pool_in_use_high_water_bytes", inUseHighWater.get());
+    stats.put("buffer_pool_allocations", allocations);
+    stats.put("buffer_pool_reuses", reuses.sum());
+    stats.put("buffer_pool_evictions", evictions);
+    return stats;
+  }
+
+  /**
+   * Releases all idle buffers; buffers still in use are left to their holders.
+   */
+  synchronized void close() throws Exception {
+    for (int c = 0; c < NUM_CLASSES; c++) {
+      while (evictIdle(c)) {
+        // Keep releasing
+      }
+    }
+  }
+
+  private int sizeClass(int size) {
+    int c = 0;
+    while (c < NUM_CLASSES - 1 && classSize(c) < size) {
+      c++;
+    }
+    return c;
+  }
+
+  private int classSize(int c) {
+    return (int) Math.min((long) minSize << c, Integer.MAX_VALUE - 8);
+  }
+
+  private int stripe() {
+    return (int) (Thread.currentThread().getId() % NUM_STRIPES);
+  }
+
+  private synchronized void reserve(int c, int bytes) throws Exception {
+    while (capBytes > 0 && heldBytes + bytes > capBytes) {
+      if (!evictOther(c)) {
+        throw new IOException("Buffer pool cap of " + capBytes + " bytes reached: " + heldBytes
+            + " bytes held, " + inUseBytes.get() + " in use, " + bytes + " requested");
+      }
+    }
+    heldBytes += bytes;
+    heldHighWater = Math.max(heldHighWater, heldBytes);
+    allocations++;
+  }
+
+  private synchronized void unreserve(int bytes) {
+    heldBytes -= bytes;
+    allocations--;
+  }
+
+  private void markInUse(int bytes) {
+    inUseHighWater.accumulateAndGet(inUseBytes.addAndGet(bytes), Math::max);
+  }
+
+  /**
+   * Releases one idle buffer of a class other than c, largest first.
+   */
+  private boolean evictOther(int c) throws Exception {
+    for (int other = NUM_CLASSES - 1; other >= 0; other--) {
+      if (other != c && evictIdle(other)) {
+        evictions++;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean evictIdle(int c) throws Exception {
+    for (ArrayDeque<CrailBuffer>[] stripe : idle) {
+      CrailBuffer buffer;
+      synchronized (stripe[c]) {
+        buffer = stripe[c].pollFirst();
+      }
+      if (buffer != null) {
+        heldBytes -= buffer.capacity();
+        if (c == 0) {
+          store.freeBuffer(buffer);
+        }
+        // Larger buffers are direct buffers, released by the garbage collector
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,189 @@
+package edu.berkeley.cs.crail;
+
+import edu.berkeley.cs.backend.PendingOp;
+import edu.berkeley.cs.backend.SizeDistribution;
+import edu.berkeley.cs.backend.StorageBackend;
+import edu.berkeley.cs.crail.CrailBenchmarkService.Logger;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes the keys [begin, end) before the timed phases, split into contiguous ranges across
+ * numWorkers threads that each keep up to depth writes in flight. Progress and throughput are
+ * logged every progressNs while the load runs.
+ *
+ * With resume set, each key is first looked up and only written if it does not exist yet, so that
+ * an interrupted load can be picked up where it stopped; this needs a backend that supports
+ * lookups. A key that fails to load does not stop the others, but fails the load once all
+ * workers are done.
+ */
+class BulkLoader {
+
+  private final long begin;
+  private final long end;
+  private final SizeDistribution sizes;
+  private final int numWorkers;
+  private final int depth;
+  private final boolean resume;
+  private final long progressNs;
+  private final LongAdder loaded = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final AtomicReference<Exception> firstError = new AtomicReference<>();
+
+  BulkLoader(long begin, long end, SizeDistribution sizes, int numWorkers, int depth,
+      boolean resume, long progressNs) {
+    this.begin = begin;
+    this.end = end;
+    this.sizes = sizes;
+    this.numWorkers = (int) Math.max(1, Math.min(numWorkers, end - begin));
+    this.depth = depth;
+    this.resume = resume;
+    this.progressNs = progressNs;
+  }
+
+  <S> void load(StorageBackend<S> c, Logger log) throws Exception {
+    if (resume && !c.supports("lookup")) {
+      throw new IllegalArgumentException("load_resume needs a backend that supports lookups");
+    }
+    long total = end - begin;
+    log.info("Loading keys [" + begin + ", " + end + ") with " + numWorkers + " threads, depth "
+        + depth + (resume ? ", skipping existing keys" : ""));
+    Thread[] workers = new Thread[numWorkers];
+    for (int t = 0; t < numWorkers; t++) {
+      long from = begin + total * t / numWorkers;
+      long to = begin + total * (t + 1) / numWorkers;
+      workers[t] = new Thread(() -> {
+        try {
+          run(c, from, to);
+        } catch (Exception e) {
+          fail(e);
+        }
+      });
+      workers[t].start();
+    }
+
+    long startNs = System.nanoTime();
+    long lastNs = startNs;
+    long lastDone = 0;
+    for (Thread worker : workers) {
+      while (worker.isAlive()) {
+        long waitNs = lastNs + progressNs - System.nanoTime();
+        if (waitNs > 0) {
+          worker.join(Math.max(1, waitNs / 1000000));
+          continue;
+        }
+        long nowNs = System.nanoTime();
+        long done = done();
+        log.info(String.format(Locale.ROOT,
+            "Loaded %d/%d keys (%.1f%%), %.1f keys/s, %d skipped, %d failed", done, total,
+            100.0 * done / total, (done - lastDone) * 1e9 / (nowNs - lastNs), skipped.sum(),
+            failed.sum()));
+        lastNs = nowNs;
+        lastDone = done;
+      }
+    }
+    double elapsedS = (System.nanoTime() - startNs) / 1e9;
+    log.info(String.format(Locale.ROOT,
+        "Loaded %d keys in %.3f s (%.1f keys/s), %d skipped as existing", loaded.sum(),
+        elapsedS, done() / elapsedS, skipped.sum()));
+    if (failed.sum() > 0) {
+      throw new IOException(failed.sum() + " keys failed to load", firstError.get());
+    }
+  }
+
+  private long done() {
+    return loaded.sum() + skipped.sum() + failed.sum();
+  }
+
+  private void fail(Exception e) {
+    failed.increment();
+    firstError.compareAndSet(null, e);
+  }
+
+  /**
+   * Loads the keys [from, to) keeping up to depth of them in flight; a slot whose lookup finds
+   * no object goes on to write it.
+   */
+  private <S> void run(StorageBackend<S> c, long from, long to) throws Exception {
+    @SuppressWarnings("unchecked")
+    S[] slots = (S[]) new Object[depth];
+    for (int s = 0; s < depth; s++) {
+      slots[s] = c.allocateSlot();
+    }
+    PendingOp[] pending = new PendingOp[depth];
+    boolean[] lookup = new boolean[depth];
+    long[] keys = new long[depth];
+    long next = from;
+    int inFlight = 0;
+    try {
+      while (next < to || inFlight > 0) {
+        for (int s = 0; s < depth; s++) {
+          if (pending[s] == null) {
+            if (next < to) {
+              keys[s] = next++;
+              lookup[s] = resume;
+              if (issue(c, slots[s], pending, lookup, keys, s)) {
+                inFlight++;
+              }
+            }
+            continue;
+          }
+
+          boolean done;
+          try {
+            done = pending[s].poll();
+          } catch (Exception e) {
+            pending[s] = null;
+            if (lookup[s] && e instanceof FileNotFoundException) {
+              lookup[s] = false;
+              if (!issue(c, slots[s], pending, lookup, keys, s)) {
+                inFlight--;
+              }
+            } else {
+              fail(e);
+              inFlight--;
+            }
+            continue;
+          }
+          if (done) {
+            (lookup[s] ? skipped : loaded).increment();
+            pending[s] = null;
+            inFlight--;
+          }
+        }
+      }
+    } finally {
+      CrailBenchmarkService.drain(pending);
+      for (S slot : slots) {
+        c.freeSlot(slot);
+      }
+    }
+  }
+
+  /**
+   * Issues the lookup or write of keys[s] into pending[s], and returns false if it failed to
+   * issue, leaving the slot free.
+   */
+  private <S> boolean issue(StorageBackend<S> c, S slot, PendingOp[] pending, boolean[] lookup,
+      long[] keys, int s) {
+    try {
+      if (lookup[s]) {
+        try {
+          pending[s] = c.lookupAsync(keys[s]);
+          return true;
+        } catch (FileNotFoundException e) {
+          lookup[s] = false;
+        }
+      }
+      pending[s] = c.writeAsync(keys[s], sizes.sizeOf(keys[s]), slot);
+      return true;
+    } catch (Exception e) {
+      fail(e);
+      return false;
+    }
+  }
+}
@@ -1,15 +1,25 @@
 package edu.berkeley.cs.crail;
 
+import edu.berkeley.cs.backend.Payload;
+import edu.berkeley.cs.backend.PathEncoder;
+import edu.berkeley.cs.backend.PendingOp;
+import edu.berkeley.cs.backend.SizeDistribution;
+import edu.berkeley.cs.backend.StorageBackend;
 import edu.berkeley.cs.crail.CrailBenchmarkService.Logger;
-import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import org.apache.crail.CrailBuffer;
+import org.apache.crail.CrailDirectory;
 import org.apache.crail.CrailFile;
 import org.apache.crail.CrailInputStream;
 import org.apache.crail.CrailLocationClass;
@@ -22,13 +32,21 @@ import org.apache.crail.CrailStore;
 import org.apache.crail.Upcoming;
 import org.apache.crail.conf.CrailConfiguration;
 import org.apache.crail.conf.CrailConstants;
-import org.apache.crail.memory.OffHeapBuffer;
 
-class Crail implements Closeable {
+public class Crail implements StorageBackend<Crail.Slot> {
 
   private CrailStore mStore;
-  private CrailBuffer mBuffer;
+  private BufferPool mPool;
   private String mBasePath;
+  private PathEncoder mPaths;
+  private PathEncoder mDirPaths;
+  private SizeDistribution mSizes;
+  private int mMaxSize;
+  private boolean mVerify;
+  private boolean mStreaming;
+  private int mStreamDepth;
+  private FileCache mFileCache;
+  private ExecutorService mListers;
 
   private static final String DEFAULT_NAMENODE = "crail://localhost:9060";
   private static final String DEFAULT_STORAGE = "org.apache.crail.storage.tcp.TcpStorageTier";
@@ -37,8 +55,37 @@ class Crail implements Closeable {
   private static final String DEFAULT_RPC = "org.apache.crail.namenode.rpc.tcp.TcpNameNode";
   private static final String DEFAULT_CACHEPATH = "/tmp/cache";
   private static final String DEFAULT_CACHELIMIT = "268435456";
+  private static final String DEFAULT_STREAM_DEPTH = "4";
+  private static final String DIRECTORY_PREFIX = "d";
+  private static final String CRAIL_HOME = "CRAIL_HOME";
+  private static final String LAMBDA_TASK_ROOT = "LAMBDA_TASK_ROOT";
+
+  /**
+   * The buffers backing one in-flight operation, taken from the buffer pool. Objects are normally
+   * transferred through a single buffer of the object's size class, which the slot keeps until an
+   * object of another class comes along; when streaming, objects larger than buffer_size are
+   * transferred in buffer_size chunks through a small ring of chunk buffers instead.
+   */
+  public static class Slot {
+
+    private CrailBuffer buffer;
+    private CrailBuffer[] chunks;
+    private Future<CrailResult>[] results;
+    private Payload payload = new Payload();
+  }
+
+  @Override
+  public void init(Properties conf, Logger log, boolean create) throws Exception {
+    if (System.getenv(CRAIL_HOME) == null) {
+      String crailHome = System.getenv(LAMBDA_TASK_ROOT);
+      if (crailHome != null) {
+        log.info("Setting environment variable CRAIL_HOME to " + crailHome);
+        injectEnv(crailHome);
+      } else {
+        log.warn("CRAIL_HOME is not set, may not load appropriate configuration variables");
+      }
+    }
 
-  void init(Properties conf, Logger log, boolean create) throws Exception {
     CrailConfiguration c = new CrailConfiguration();
     c.set("crail.namenode.address", conf.getProperty("namenode_address", DEFAULT_NAMENODE));
     c.set("crail.storage.types", conf.getProperty("storage_mode", DEFAULT_STORAGE));
@@ -48,18 +95,44 @@ class Crail implements Closeable {
     c.set("crail.cachepath", conf.getProperty("cache_path", DEFAULT_CACHEPATH));
     c.set("crail.cachelimit", conf.getProperty("cache_limit", DEFAULT_CACHELIMIT));
     mStore = CrailStore.newInstance(c);
-    int mObjectSize = Integer.parseInt(conf.getProperty("size", "1024"));
+    mSizes = SizeDistribution.parse(conf.getProperty("size", "1024"));
+    mMaxSize = mSizes.maxSize();
     mBasePath = conf.getProperty("path", "/test");
-
-    if (mObjectSize == CrailConstants.BUFFER_SIZE) {
-      mBuffer = mStore.allocateBuffer();
-    } else if (mObjectSize < CrailConstants.BUFFER_SIZE) {
-      CrailBuffer _buf = mStore.allocateBuffer();
-      _buf.clear().limit(mObjectSize);
-      mBuffer = _buf.slice();
-    } else {
-      mBuffer = OffHeapBuffer.wrap(ByteBuffer.allocateDirect(mObjectSize));
+    long pathCacheKeys = Long.parseLong(conf.getProperty("path_cache_keys", "0"));
+    mPaths = new PathEncoder(mBasePath + "/", pathCacheKeys);
+    mDirPaths = new PathEncoder(mBasePath + "/" + DIRECTORY_PREFIX, pathCacheKeys);
+    if (pathCacheKeys > 0) {
+      log.info("Caching the paths of keys below " + pathCacheKeys);
+    }
+    mVerify = Boolean.parseBoolean(conf.getProperty("verify", "false"));
+    if (mVerify && mSizes.minSize() < Payload.CHECKSUM_SIZE) {
+      throw new IllegalArgumentException("verify requires size >= " + Payload.CHECKSUM_SIZE);
+    }
+    mStreaming = Boolean.parseBoolean(conf.getProperty("streaming", "false"))
+        && mMaxSize > CrailConstants.BUFFER_SIZE;
+    mStreamDepth = Integer.parseInt(conf.getProperty("stream_depth", DEFAULT_STREAM_DEPTH));
+    if (mStreaming) {
+      log.info("Streaming objects in " + CrailConstants.BUFFER_SIZE + " byte chunks, stream_depth="
+          + mStreamDepth);
+    }
+    long poolCapBytes = Long.parseLong(conf.getProperty("buffer_pool_mb", "0")) << 20;
+    mPool = new BufferPool(mStore, CrailConstants.BUFFER_SIZE, poolCapBytes);
+    // Streamed objects only take buffers of buffer_size
+    mPool.preallocate(mStreaming ? CrailConstants.BUFFER_SIZE : mMaxSize);
+    if (poolCapBytes > 0) {
+      log.info("Buffer pool capped at " + poolCapBytes + " bytes");
     }
+    int fileCacheSize = Integer.parseInt(conf.getProperty("file_cache_size", "0"));
+    if (fileCacheSize > 0) {
+      mFileCache = new FileCache(fileCacheSize);
+      log.info("Caching up to " + fileCacheSize + " file handles");
+    }
+
+    mListers = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "crail-list");
+      t.setDaemon(true);
+      return t;
+    });
 
     if (create) {
       createBasePath();
@@ -67,53 +140,109 @@ class Crail implements Closeable {
     }
   }
 
-  void load(int numKeys, int numLoadThreads) throws Exception {
-    final int keysPerThread = numKeys / numLoadThreads;
-    Thread loadThreads[] = new Thread[numLoadThreads];
-    for (int t = 0; t < numLoadThreads; t++) {
-      final int idx = t;
-      loadThreads[t] = new Thread(() -> {
-        int begin = idx * keysPerThread;
-        int end = (idx + 1) * keysPerThread;
-        for (int i = begin; i < end; ++i) {
-          write(String.valueOf(i));
-        }
-      });
-      loadThreads[t].start();
+  @Override
+  public PendingOp writeAsync(long key, int size, Slot slot) throws Exception {
+    String path = mPaths.encode(key);
+    Upcoming<CrailNode> node = createFileAsync(path);
+    if (mStreaming) {
+      return new PendingStreamWrite(path, node, slot, key, size);
     }
+    return new PendingWrite(path, node, slot, key, size);
+  }
 
-    for (Thread t: loadThreads) {
-      t.join();
+  @Override
+  public PendingOp readAsync(long key, int size, Slot slot) throws Exception {
+    String path = mPaths.encode(key);
+    PendingFileOp op = mStreaming ? new PendingStreamRead(path, null, slot, key, size)
+        : new PendingRead(path, null, slot, key, size);
+    if (mFileCache != null) {
+      op.file = mFileCache.get(path);
     }
+    if (op.file == null) {
+      op.node = mStore.lookup(path);
+    }
+    return op;
   }
 
-  void write(String key) {
-    try {
-      CrailFile f = createFile(mBasePath + "/" + key);
-      mBuffer.clear();
-      CrailOutputStream out = f.getDirectOutputStream(Integer.MAX_VALUE);
-      out.write(mBuffer).get().getLen();
-      out.close();
-    } catch (Exception e) {
-      throw new RuntimeException(e.getMessage(), e);
+  @Override
+  public PendingOp mkdirAsync(long key) throws Exception {
+    String path = mDirPaths.encode(key);
+    return new PendingNode(path, mStore.create(path, CrailNodeType.DIRECTORY,
+        CrailStorageClass.PARENT, CrailLocationClass.PARENT, true));
+  }
+
+  @Override
+  public PendingOp touchAsync(long key) throws Exception {
+    String path = mPaths.encode(key);
+    invalidate(path);
+    return new PendingNode(path, createFileAsync(path));
+  }
+
+  @Override
+  public PendingOp lookupAsync(long key) throws Exception {
+    String path = mPaths.encode(key);
+    return new PendingNode(path, mStore.lookup(path));
+  }
+
+  @Override
+  public PendingOp deleteAsync(long key) throws Exception {
+    String path = mPaths.encode(key);
+    invalidate(path);
+    return new PendingNode(path, mStore.delete(path, false));
+  }
+
+  @Override
+  public PendingOp listAsync() throws Exception {
+    return new PendingList(mBasePath, mStore.lookup(mBasePath));
+  }
+
+  @Override
+  public Map<String, Long> stats() {
+    Map<String, Long> stats = new LinkedHashMap<>();
+    if (mFileCache != null) {
+      stats.put("file_cache_hits", mFileCache.hits());
+      stats.put("file_cache_misses", mFileCache.misses());
+      stats.put("file_cache_evictions", mFileCache.evictions());
     }
+    stats.putAll(mPool.stats());
+    return stats;
   }
 
-  String read(String key) {
-    try {
-      CrailFile f = lookupFile(mBasePath + "/" + key);
-      CrailInputStream is = f.getDirectInputStream(f.getCapacity());
-      mBuffer.clear();
-      is.read(mBuffer).get().getLen();
-      is.close();
-    } catch (Exception e) {
-      throw new RuntimeException(e.getMessage(), e);
+  @Override
+  public Slot allocateSlot() throws Exception {
+    Slot slot = new Slot();
+    if (mStreaming) {
+      slot.chunks = new CrailBuffer[mStreamDepth];
+      for (int i = 0; i < mStreamDepth; i++) {
+        slot.chunks[i] = mPool.acquire(CrailConstants.BUFFER_SIZE);
+      }
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      Future<CrailResult>[] results = (Future<CrailResult>[]) new Future[mStreamDepth];
+      slot.results = results;
+    } else if (mSizes.isFixed()) {
+      // Allocated up front, so that no operation allocates; variable sizes pick up buffers of
+      // each class as they come
+      slot.buffer = mPool.acquire(mMaxSize);
     }
-    return StandardCharsets.UTF_8.decode(mBuffer.getByteBuffer()).toString();
+    return slot;
   }
 
-  void destroy() throws Exception {
-    mStore.freeBuffer(mBuffer);
+  @Override
+  public void freeSlot(Slot slot) {
+    if (slot.buffer != null) {
+      mPool.release(slot.buffer);
+      slot.buffer = null;
+    }
+    if (slot.chunks != null) {
+      for (CrailBuffer chunk : slot.chunks) {
+        mPool.release(chunk);
+      }
+      slot.chunks = null;
+    }
+  }
+
+  @Override
+  public void destroy() throws Exception {
     mStore.delete(mBasePath, true);
     mStore.getStatistics().print("close");
   }
@@ -123,28 +252,432 @@ class Crail implements Closeable {
         CrailLocationClass.DEFAULT, true).get();
   }
 
-  private CrailFile createFile(String key) throws Exception {
-    return createFileAsync(key).get().asFile();
-  }
-
-  private Upcoming<CrailNode> createFileAsync(String key) throws Exception {
+  private Upcoming<CrailNode> createFileAsync(String path) throws Exception {
     return mStore
-        .create(key, CrailNodeType.DATAFILE, CrailStorageClass.PARENT, CrailLocationClass.PARENT,
+        .create(path, CrailNodeType.DATAFILE, CrailStorageClass.PARENT, CrailLocationClass.PARENT,
             true);
   }
 
-  private CrailFile lookupFile(String key) throws FileNotFoundException {
+  /**
+   * Returns the slot's buffer for an object of size bytes, first swapping it for a pooled buffer
+   * of the object's size class if it is of another class.
+   */
+  private CrailBuffer buffer(Slot slot, int size) throws Exception {
+    if (slot.buffer != null && !mPool.fits(slot.buffer, size)) {
+      mPool.release(slot.buffer);
+      slot.buffer = null;
+    }
+    if (slot.buffer == null) {
+      slot.buffer = mPool.acquire(size);
+    }
+    return slot.buffer;
+  }
+
+  private interface Stream {
+
+    void close() throws Exception;
+  }
+
+  /**
+   * Closes the stream of an operation that failed with e, so that it does not leak, and returns e
+   * to be rethrown.
+   */
+  private static Exception closeOnError(Stream stream, Exception e) {
     try {
-      return mStore.lookup(key).get().asFile();
-    } catch (Exception e) {
-      throw new FileNotFoundException("File does not exist: " + key);
+      stream.close();
+    } catch (Exception suppressed) {
+      e.addSuppressed(suppressed);
+    }
+    return e;
+  }
+
+  private void invalidate(String path) {
+    if (mFileCache != null) {
+      mFileCache.invalidate(path);
+    }
+  }
+
+  /**
+   * A metadata-only operation, which completes with the namenode's response.
+   */
+  private static class PendingNode implements PendingOp {
+
+    private String path;
+    private Upcoming<CrailNode> node;
+
+    PendingNode(String path, Upcoming<CrailNode> node) {
+      this.path = path;
+      this.node = node;
+    }
+
+    @Override
+    public boolean poll() throws Exception {
+      if (!node.isDone()) {
+        return false;
+      }
+      if (node.get() == null) {
+        throw new FileNotFoundException("File does not exist: " + path);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Looks up a directory and enumerates all of its entries. Crail reads the entries of a
+   * directory synchronously, so the enumeration runs once per operation on a lister thread, and
+   * the operation completes with it, instead of blocking the thread that polls the others.
+   */
+  private class PendingList extends PendingNode {
+
+    private Upcoming<CrailNode> node;
+    private Future<Integer> entries;
+
+    PendingList(String path, Upcoming<CrailNode> node) {
+      super(path, node);
+      this.node = node;
+    }
+
+    @Override
+    public boolean poll() throws Exception {
+      if (entries == null) {
+        if (!super.poll()) {
+          return false;
+        }
+        CrailDirectory dir = node.get().asDirectory();
+        entries = mListers.submit(() -> {
+          int n = 0;
+          for (Iterator<String> it = dir.listEntries(); it.hasNext(); it.next()) {
+            n++;
+          }
+          return n;
+        });
+      }
+      if (!entries.isDone()) {
+        return false;
+      }
+      try {
+        entries.get();
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A data operation on a single file, whose handle comes either from the file cache or from an
+   * outstanding create or lookup. Handles obtained from the namenode are added to the cache, so
+   * that writes replace any stale handle for the path.
+   */
+  private abstract class PendingFileOp implements PendingOp {
+
+    String path;
+    Upcoming<CrailNode> node;
+    CrailFile file;
+
+    PendingFileOp(String path, Upcoming<CrailNode> node) {
+      this.path = path;
+      this.node = node;
+    }
+
+    /**
+     * Returns true once the file handle is available.
+     */
+    boolean resolve() throws Exception {
+      if (file != null) {
+        return true;
+      }
+      if (!node.isDone()) {
+        return false;
+      }
+      CrailNode n = node.get();
+      if (n == null) {
+        throw new FileNotFoundException("File does not exist: " + path);
+      }
+      file = n.asFile();
+      if (mFileCache != null) {
+        mFileCache.put(path, file);
+      }
+      return true;
+    }
+  }
+
+  private class PendingWrite extends PendingFileOp {
+
+    private CrailBuffer buffer;
+    private int size;
+    private CrailOutputStream out;
+    private Future<CrailResult> result;
+
+    PendingWrite(String path, Upcoming<CrailNode> node, Slot slot, long key, int size)
+        throws Exception {
+      super(path, node);
+      this.size = size;
+      this.buffer = buffer(slot, size);
+      if (mVerify) {
+        slot.payload.begin(key, size);
+        slot.payload.stamp(buffer.getByteBuffer(), size);
+      }
+    }
+
+    @Override
+    public boolean poll() throws Exception {
+      if (result == null) {
+        if (!resolve()) {
+          return false;
+        }
+        out = file.getDirectOutputStream(Integer.MAX_VALUE);
+        buffer.clear().limit(size);
+        try {
+          result = out.write(buffer);
+        } catch (Exception e) {
+          throw closeOnError(out::close, e);
+        }
+      }
+      if (!result.isDone()) {
+        return false;
+      }
+      try {
+        result.get();
+      } catch (Exception e) {
+        throw closeOnError(out::close, e);
+      }
+      out.close();
+      return true;
+    }
+  }
+
+  private class PendingRead extends PendingFileOp {
+
+    private Slot slot;
+    private long key;
+    private int size;
+    private CrailBuffer buffer;
+    private CrailInputStream in;
+    private Future<CrailResult> result;
+
+    PendingRead(String path, Upcoming<CrailNode> node, Slot slot, long key, int size)
+        throws Exception {
+      super(path, node);
+      this.slot = slot;
+      this.key = key;
+      this.size = size;
+      this.buffer = buffer(slot, size);
+    }
+
+    @Override
+    public boolean poll() throws Exception {
+      if (result == null) {
+        if (!resolve()) {
+          return false;
+        }
+        in = file.getDirectInputStream(file.getCapacity());
+        buffer.clear();
+        try {
+          result = in.read(buffer);
+        } catch (Exception e) {
+          throw closeOnError(in::close, e);
+        }
+      }
+      if (!result.isDone()) {
+        return false;
+      }
+      int len;
+      try {
+        len = (int) result.get().getLen();
+      } catch (Exception e) {
+        throw closeOnError(in::close, e);
+      }
+      in.close();
+      if (len != size) {
+        throw new IOException("Short read for key " + key + ": " + len + "/" + size);
+      }
+      if (mVerify) {
+        slot.payload.begin(key, size);
+        if (!slot.payload.check(buffer.getByteBuffer(), len)) {
+          throw new IOException("Checksum mismatch for key " + key);
+        }
+      }
+      return true;
     }
   }
 
+  /**
+   * Writes an object in buffer_size chunks, keeping up to stream_depth chunk writes outstanding
+   * on the output stream.
+   */
+  private class PendingStreamWrite extends PendingFileOp {
+
+    private Slot slot;
+    private long key;
+    private int size;
+    private CrailOutputStream out;
+    private long issued;
+    private int head;
+    private int inFlight;
+
+    PendingStreamWrite(String path, Upcoming<CrailNode> node, Slot slot, long key, int size) {
+      super(path, node);
+      this.slot = slot;
+      this.key = key;
+      this.size = size;
+    }
+
+    @Override
+    public boolean poll() throws Exception {
+      if (out == null) {
+        if (!resolve()) {
+          return false;
+        }
+        out = file.getDirectOutputStream(size);
+        if (mVerify) {
+          slot.payload.begin(key, size);
+        }
+      }
+
+      try {
+        while (inFlight > 0 && slot.results[head].isDone()) {
+          slot.results[head].get();
+          slot.results[head] = null;
+          head = (head + 1) % mStreamDepth;
+          --inFlight;
+        }
+
+        while (inFlight < mStreamDepth && issued < size) {
+          int idx = (head + inFlight) % mStreamDepth;
+          CrailBuffer chunk = slot.chunks[idx];
+          int len = (int) Math.min(chunk.capacity(), size - issued);
+          chunk.clear().limit(len);
+          if (mVerify) {
+            slot.payload.stamp(chunk.getByteBuffer(), len);
+          }
+          slot.results[idx] = out.write(chunk);
+          issued += len;
+          ++inFlight;
+        }
+      } catch (Exception e) {
+        throw closeOnError(out::close, e);
+      }
+
+      if (inFlight > 0) {
+        return false;
+      }
+      out.close();
+      return true;
+    }
+  }
+
+  /**
+   * Reads an object in buffer_size chunks, keeping up to stream_depth chunk reads outstanding on
+   * the input stream. Chunks are retired, and verified, in stream order.
+   */
+  private class PendingStreamRead extends PendingFileOp {
+
+    private Slot slot;
+    private long key;
+    private int size;
+    private CrailInputStream in;
+    private long length;
+    private long issued;
+    private long received;
+    private int head;
+    private int inFlight;
+
+    PendingStreamRead(String path, Upcoming<CrailNode> node, Slot slot, long key, int size) {
+      super(path, node);
+      this.slot = slot;
+      this.key = key;
+      this.size = size;
+    }
+
+    @Override
+    public boolean poll() throws Exception {
+      if (in == null) {
+        if (!resolve()) {
+          return false;
+        }
+        length = Math.min(file.getCapacity(), size);
+        in = file.getDirectInputStream(file.getCapacity());
+        if (mVerify) {
+          slot.payload.begin(key, size);
+        }
+      }
+
+      try {
+        while (inFlight > 0 && slot.results[head].isDone()) {
+          int len = (int) slot.results[head].get().getLen();
+          slot.results[head] = null;
+          if (mVerify && !slot.payload.check(slot.chunks[head].getByteBuffer(), len)) {
+            throw new IOException("Checksum mismatch for key " + key);
+          }
+          received += len;
+          head = (head + 1) % mStreamDepth;
+          --inFlight;
+        }
+
+        while (inFlight < mStreamDepth && issued < length) {
+          int idx = (head + inFlight) % mStreamDepth;
+          CrailBuffer chunk = slot.chunks[idx];
+          int len = (int) Math.min(chunk.capacity(), length - issued);
+          chunk.clear().limit(len);
+          slot.results[idx] = in.read(chunk);
+          issued += len;
+          ++inFlight;
+        }
+      } catch (Exception e) {
+        throw closeOnError(in::close, e);
+      }
+
+      if (inFlight > 0) {
+        return false;
+      }
+      in.close();
+      if (received != size) {
+        throw new IOException("Short read for key " + key + ": " + received + "/" + size);
+      }
+      return true;
+    }
+  }
+
+  private static void injectEnv(String value) throws Exception {
+    Class<?> processEnvironment = Class.forName("java.lang.ProcessEnvironment");
+
+    Field unmodifiableMapField = getAccessibleField(processEnvironment,
+        "theUnmodifiableEnvironment");
+    Object unmodifiableMap = unmodifiableMapField.get(null);
+    injectIntoUnmodifiableMap(value, unmodifiableMap);
+
+    Field mapField = getAccessibleField(processEnvironment, "theEnvironment");
+    Map<String, String> map = (Map<String, String>) mapField.get(null);
+    map.put(CRAIL_HOME, value);
+  }
+
+  private static Field getAccessibleField(Class<?> clazz, String fieldName)
+      throws NoSuchFieldException {
+
+    Field field = clazz.getDeclaredField(fieldName);
+    field.setAccessible(true);
+    return field;
+  }
+
+  private static void injectIntoUnmodifiableMap(String value, Object map)
+      throws ReflectiveOperationException {
+    Class unmodifiableMap = Class.forName("java.util.Collections$UnmodifiableMap");
+    Field field = getAccessibleField(unmodifiableMap, "m");
+    Object obj = field.get(map);
+    ((Map<String, String>) obj).put(CRAIL_HOME, value);
+  }
+
   @Override
   public void close() throws IOException {
     if (mStore != null) {
       try {
+        if (mListers != null) {
+          mListers.shutdownNow();
+        }
+        if (mPool != null) {
+          mPool.close();
+        }
         mStore.close();
       } catch (Exception e) {
         throw new IOException(e);
@@ -1,23 +1,51 @@
 package edu.berkeley.cs.crail;
 
 import edu.berkeley.cs.BenchmarkService;
+import edu.berkeley.cs.backend.LocalFileBackend;
+import edu.berkeley.cs.backend.MemoryBackend;
+import edu.berkeley.cs.backend.PendingOp;
+import edu.berkeley.cs.backend.SizeDistribution;
+import edu.berkeley.cs.backend.StorageBackend;
+import edu.berkeley.cs.keygen.ExponentialKeyGenerator;
+import edu.berkeley.cs.keygen.HotspotKeyGenerator;
 import edu.berkeley.cs.keygen.KeyGenerator;
+import edu.berkeley.cs.keygen.LatestKeyGenerator;
+import edu.berkeley.cs.keygen.PartitionKeyGenerator;
 import edu.berkeley.cs.keygen.SequentialKeyGenerator;
+import edu.berkeley.cs.keygen.UniformKeyGenerator;
 import edu.berkeley.cs.keygen.ZipfKeyGenerator;
+import edu.berkeley.cs.server.LatencyHistogram;
+import edu.berkeley.cs.server.LatencyLog;
+import edu.berkeley.cs.server.LogProtocol;
+import edu.berkeley.cs.server.ResultProtocol;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.lang.reflect.Field;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.SplittableRandom;
 
 public class CrailBenchmarkService implements BenchmarkService {
 
@@ -27,50 +55,80 @@ public class CrailBenchmarkService implements BenchmarkService {
   private static final int BENCHMARK_CREATE = 4;
   private static final int BENCHMARK_DESTROY = 8;
   private static final int BENCHMARK_LOAD = 16;
-  private static final String CRAIL_HOME = "CRAIL_HOME";
-  private static final String LAMBDA_TASK_ROOT = "LAMBDA_TASK_ROOT";
+  private static final int BENCHMARK_MKDIR = 32;
+  private static final int BENCHMARK_TOUCH = 64;
+  private static final int BENCHMARK_LOOKUP = 128;
+  private static final int BENCHMARK_LIST = 256;
+  private static final int BENCHMARK_DELETE = 512;
+  // Timed phases, in the order they run
+  private static final int[] PHASES = {BENCHMARK_WRITE, BENCHMARK_READ, BENCHMARK_MKDIR,
+      BENCHMARK_TOUCH, BENCHMARK_LOOKUP, BENCHMARK_LIST, BENCHMARK_DELETE};
+  private static final String[] PHASE_NAMES = {"write", "read", "mkdir", "touch", "lookup", "list",
+      "delete"};
+  private static final int ALL_PHASES = BENCHMARK_WRITE | BENCHMARK_READ | BENCHMARK_MKDIR
+      | BENCHMARK_TOUCH | BENCHMARK_LOOKUP | BENCHMARK_LIST | BENCHMARK_DELETE;
+  // Index of writes in PHASES
+  private static final int WRITE_PHASE = 0;
 
   public class Logger implements Closeable {
 
     private Socket socket;
-    private PrintWriter out;
+    private DataOutputStream out;
 
-    Logger(String host, int port) throws IOException {
+    Logger(String host, int port, String id) throws IOException {
       this.socket = new Socket(host, port);
-      this.out = new PrintWriter(socket.getOutputStream(), true);
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      send(LogProtocol.HELLO, id);
     }
 
-    void info(String msg) {
+    public void info(String msg) {
       log("INFO", msg);
     }
 
-    void warn(String msg) {
+    public void warn(String msg) {
       log("WARN", msg);
     }
 
-    void error(String msg) {
+    public void error(String msg) {
       log("ERROR", msg);
     }
 
-    private void write(String data) {
-      this.out.write(data + "\n");
-      this.out.flush();
+    /**
+     * Logs msg followed by the stack trace of e, as a single message.
+     */
+    public void error(String msg, Throwable e) {
+      StringWriter trace = new StringWriter();
+      e.printStackTrace(new PrintWriter(trace));
+      log("ERROR", msg + "\n" + trace);
     }
 
     private void log(String msgType, String msg) {
-      write(msgType + " " + msg);
+      send(LogProtocol.MESSAGE, msgType + " " + msg);
     }
 
-    PrintWriter getPrintWriter() {
-      return out;
+    private synchronized void send(byte type, String data) {
+      byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+      int length = Math.min(bytes.length, LogProtocol.MAX_MESSAGE_SIZE);
+      try {
+        out.writeByte(type);
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+        out.flush();
+      } catch (IOException e) {
+        // Logging is best-effort, as with the coordinator unreachable there is no one to tell
+      }
     }
 
-    void flush() {
-      this.out.flush();
+    /**
+     * Tells the LogServer that this function was rejected as a duplicate, and closes the log.
+     */
+    void abort() throws IOException {
+      send(LogProtocol.ABORT, "");
+      this.socket.close();
     }
 
     public void close() throws IOException {
-      write("CLOSE");
+      send(LogProtocol.CLOSE, "");
       this.socket.shutdownInput();
       this.socket.shutdownOutput();
       this.socket.close();
@@ -82,6 +140,9 @@ public class CrailBenchmarkService implements BenchmarkService {
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
+    private long offsetUs;
+    private long startNs;
+    private long epochNs;
 
     Controller(String host, int port) throws IOException {
       this.socket = new Socket(host, port);
@@ -89,23 +150,66 @@ public class CrailBenchmarkService implements BenchmarkService {
       this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
     }
 
+    /**
+     * Registers the function, answers the ControlServer's clock synchronization pings until it
+     * announces the start instant, and returns true; returns false if the function is rejected.
+     */
     boolean signal(String id) {
       write("LAMBDA_ID:" + id);
       try {
-        String response = in.readLine();
-        if (response.equalsIgnoreCase("ABORT")) {
-          this.socket.shutdownInput();
-          this.socket.shutdownOutput();
-          this.socket.close();
-          return false;
-        } else {
-          return response.equals("OK");
+        String response;
+        while ((response = in.readLine()) != null) {
+          if (response.startsWith("PING ")) {
+            long t2 = nowUs();
+            write("PONG " + response.substring(5) + " " + t2 + " " + nowUs());
+          } else if (response.startsWith("START ")) {
+            String[] parts = response.split(" ");
+            offsetUs = Long.parseLong(parts[2]);
+            startNs = (Long.parseLong(parts[1]) + offsetUs) * 1000;
+            epochNs = (Long.parseLong(parts[3]) + offsetUs) * 1000;
+            return true;
+          } else if (response.equalsIgnoreCase("ABORT")) {
+            this.socket.shutdownInput();
+            this.socket.shutdownOutput();
+            this.socket.close();
+            return false;
+          }
         }
+        return false;
       } catch (IOException e) {
         return false;
       }
     }
 
+    /**
+     * Waits until the start instant announced by the ControlServer.
+     */
+    void awaitStart() throws InterruptedException {
+      long waitNs;
+      while ((waitNs = startNs - System.nanoTime()) > 0) {
+        if (waitNs > 2000000) {
+          Thread.sleep((waitNs - 1000000) / 1000000);
+        } else {
+          Thread.yield();
+        }
+      }
+    }
+
+    /**
+     * Returns how far this function's clock is ahead of the coordinator's, in microseconds.
+     */
+    long getOffsetUs() {
+      return offsetUs;
+    }
+
+    /**
+     * Returns the instant, on this function's clock, that is time zero on the coordinator's
+     * timeline shared by all functions.
+     */
+    long getEpochNs() {
+      return epochNs;
+    }
+
     private void write(String data) {
       this.out.write(data + "\n");
       this.out.flush();
@@ -126,28 +230,51 @@ public class CrailBenchmarkService implements BenchmarkService {
 
   public class NetworkResultWriter implements ResultWriter {
 
-    private static final String EOF = "::";
-    private static final String EOC = "::::";
-
-    private Socket socket;
-    private PrintWriter out;
+    private SocketChannel channel;
+    private ByteBuffer header = ByteBuffer.allocate(ResultProtocol.HEADER_SIZE);
 
     NetworkResultWriter(String host, int port) throws IOException {
-      this.socket = new Socket(host, port);
-      this.out = new PrintWriter(socket.getOutputStream(), true);
+      this.channel = SocketChannel.open(new InetSocketAddress(host, port));
     }
 
+    /**
+     * Sends the file in CHUNK_SIZE frames transferred directly from its file channel.
+     */
     public void writeResult(String fileName) throws IOException {
-      this.out.write(fileName + "\n");
-      this.out.write(new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8));
-      this.out.write(EOF + "\n");
-      this.out.flush();
+      byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+      writeHeader(ResultProtocol.FILE, name.length);
+      writeFully(ByteBuffer.wrap(name));
+      try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+        long position = 0;
+        long size = in.size();
+        while (position < size) {
+          int length = (int) Math.min(ResultProtocol.CHUNK_SIZE, size - position);
+          writeHeader(ResultProtocol.DATA, length);
+          long end = position + length;
+          while (position < end) {
+            position += in.transferTo(position, end - position, channel);
+          }
+        }
+      }
+      writeHeader(ResultProtocol.END, 0);
     }
 
     @Override
-    public void close() {
-      this.out.write(EOC + "\n");
-      this.out.close();
+    public void close() throws IOException {
+      writeHeader(ResultProtocol.CLOSE, 0);
+      this.channel.close();
+    }
+
+    private void writeHeader(byte type, int length) throws IOException {
+      header.clear();
+      header.put(type).putInt(length).flip();
+      writeFully(header);
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
     }
   }
 
@@ -173,18 +300,29 @@ public class CrailBenchmarkService implements BenchmarkService {
     props.putAll(conf);
 
     String distribution = conf.getOrDefault("distribution", "sequential");
-    int size = Integer.parseInt(conf.getOrDefault("size", "1024"));
-    int nOps = Integer.parseInt(conf.getOrDefault("num_ops", "1000"));
-    KeyGenerator kGen;
-    if (distribution.startsWith("zipf:")) {
-      String[] parts = distribution.split(":");
-      kGen = new ZipfKeyGenerator(Double.parseDouble(parts[2]), Integer.parseInt(parts[1]));
-    } else if (distribution.equalsIgnoreCase("sequential")) {
-      kGen = new SequentialKeyGenerator();
-    } else {
-      throw new RuntimeException("Unrecognized key distribution: " + distribution);
+    SizeDistribution sizes;
+    try {
+      sizes = SizeDistribution.parse(conf.getOrDefault("size", "1024"));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
     }
+    int nOps = Integer.parseInt(conf.getOrDefault("num_ops", "1000"));
+    int numClientThreads = Integer.parseInt(conf.getOrDefault("client_threads", "1"));
+    long seed = Long.parseLong(conf.getOrDefault("seed", "0"));
+    String id = conf.getOrDefault("lambda_id", "0");
+    StorageBackend<?> backend = makeBackend(conf.getOrDefault("backend", "crail"));
     String modeStr = conf.getOrDefault("mode", "create_write_read_destroy");
+    // mix:read=0.95,write=0.05 runs the listed operations interleaved in one phase, after the
+    // phases of the rest of the mode
+    double[] mix = null;
+    int mixAt = modeStr.indexOf("mix:");
+    if (mixAt >= 0) {
+      int mixEnd = modeStr.indexOf('_', mixAt);
+      mixEnd = mixEnd < 0 ? modeStr.length() : mixEnd;
+      mix = parseMix(modeStr.substring(mixAt + "mix:".length(), mixEnd));
+      modeStr = modeStr.substring(0, mixAt) + modeStr.substring(mixEnd);
+    }
     int mode = 0;
     if (modeStr.contains("read")) {
       mode |= BENCHMARK_READ;
@@ -201,18 +339,121 @@ public class CrailBenchmarkService implements BenchmarkService {
     if (modeStr.contains("load")) {
       mode |= BENCHMARK_LOAD;
     }
-    int numLoadThreads = Integer.parseInt(conf.getOrDefault("load_threads", "64"));
+    if (modeStr.contains("mkdir")) {
+      mode |= BENCHMARK_MKDIR;
+    }
+    if (modeStr.contains("touch")) {
+      mode |= BENCHMARK_TOUCH;
+    }
+    if (modeStr.contains("lookup")) {
+      mode |= BENCHMARK_LOOKUP;
+    }
+    if (modeStr.contains("list")) {
+      mode |= BENCHMARK_LIST;
+    }
+    if (modeStr.contains("delete")) {
+      mode |= BENCHMARK_DELETE;
+    }
+    // The load mode writes keys [0, num_ops) before any phase runs, split across the functions of
+    // a scale run; as functions of later waves load theirs only once started, each function then
+    // draws its keys from its own share alone (see PartitionKeyGenerator)
+    int numFunctions = Integer.parseInt(conf.getOrDefault("num_functions", "1"));
+    int functionIdx = numFunctions > 1 ? Integer.parseInt(id) : 0;
+    long loadBegin = (mode & BENCHMARK_LOAD) == BENCHMARK_LOAD
+        ? (long) nOps * functionIdx / numFunctions : 0;
+    long loadEnd = (mode & BENCHMARK_LOAD) == BENCHMARK_LOAD
+        ? (long) nOps * (functionIdx + 1) / numFunctions : 0;
+    long numLoadedKeys = loadEnd - loadBegin;
+    BulkLoader loader = null;
+    if (numLoadedKeys > 0) {
+      loader = new BulkLoader(loadBegin, loadEnd, sizes,
+          Integer.parseInt(conf.getOrDefault("load_threads", "64")),
+          Integer.parseInt(conf.getOrDefault("load_queue_depth", "4")),
+          Boolean.parseBoolean(conf.getOrDefault("load_resume", "false")),
+          Long.parseLong(conf.getOrDefault("load_progress_s", "10")) * 1000 * 1000 * 1000);
+    }
+    // Under latest, only written keys are drawn for operations other than writes, so some must be
+    // written (by the load or the write phase) before the first of those runs
+    if (distribution.split(":")[0].equalsIgnoreCase("latest") && numLoadedKeys == 0
+        && (mode & BENCHMARK_WRITE) == 0) {
+      boolean drawsWritten = (mode & ALL_PHASES & ~BENCHMARK_WRITE) != 0;
+      for (int p = 0; mix != null && p < PHASES.length; p++) {
+        drawsWritten |= p != WRITE_PHASE && mix[p] > 0.0;
+      }
+      if (drawsWritten) {
+        throw new RuntimeException("The latest distribution needs a load or write phase");
+      }
+    }
+    int queueDepth = Integer.parseInt(conf.getOrDefault("queue_depth", "1"));
+    double targetOpsPerSec = Double.parseDouble(conf.getOrDefault("target_ops_per_sec", "0"));
+    String arrival = conf.getOrDefault("arrival", "constant");
+    if (!arrival.equalsIgnoreCase("constant") && !arrival.equalsIgnoreCase("poisson")) {
+      throw new RuntimeException("Unrecognized arrival process: " + arrival);
+    }
+    boolean poisson = arrival.equalsIgnoreCase("poisson");
+    KeyGenerator[] kGens = new KeyGenerator[numClientThreads];
+    OpStreams streams = null;
+    if (distribution.startsWith("trace:")) {
+      if (mix != null) {
+        throw new RuntimeException("A trace cannot be replayed in a mix mode");
+      }
+      // Replays a trace instead of running the phases of the mode; each client thread of each
+      // function replays its own partition of it
+      mode &= ~ALL_PHASES;
+      String trace = distribution.substring("trace:".length());
+      int part = Integer.parseInt(id) * numClientThreads;
+      int numParts = numFunctions * numClientThreads;
+      String timing = conf.getOrDefault("trace_timing", "faithful");
+      if (!timing.equalsIgnoreCase("faithful") && !timing.equalsIgnoreCase("fast")) {
+        throw new RuntimeException("Unrecognized trace timing: " + timing);
+      }
+      double speed = timing.equalsIgnoreCase("fast") ? 0.0
+          : Double.parseDouble(conf.getOrDefault("trace_speed", "1"));
+      TraceReplay replay = new TraceReplay(trace, PHASE_NAMES, sizes, part, numClientThreads,
+          numParts, speed);
+      streams = replay::open;
+    } else {
+      SplittableRandom random = functionRandom(seed, id);
+      kGens = makeKeyGenerators(distribution, numClientThreads, numLoadedKeys, random);
+      if (numLoadedKeys > 0 && numFunctions > 1) {
+        for (int t = 0; t < numClientThreads; t++) {
+          kGens[t] = new PartitionKeyGenerator(kGens[t], loadBegin, numLoadedKeys, nOps,
+              functionIdx, numFunctions, kGens[t] instanceof LatestKeyGenerator);
+        }
+      }
+      if (mix != null) {
+        double[] ratios = mix;
+        KeyGenerator[] mixGens = kGens;
+        SplittableRandom[] mixRandoms = new SplittableRandom[numClientThreads];
+        for (int t = 0; t < numClientThreads; t++) {
+          mixRandoms[t] = random.split();
+        }
+        streams = t -> new MixStream(ratios, WRITE_PHASE, mixGens[t], sizes, mixRandoms[t],
+            share(nOps, t, numClientThreads), targetOpsPerSec / numClientThreads, poisson);
+      }
+    }
     boolean warmUp = Boolean.parseBoolean(conf.getOrDefault("warm_up", "true"));
+    long intervalNs = Long.parseLong(conf.getOrDefault("interval_ms", "1000")) * 1000 * 1000;
+    // Format of the raw per-op latency log, or null to not write it
+    String latencyLog = null;
+    if (Boolean.parseBoolean(conf.getOrDefault("latency_log", "false"))) {
+      latencyLog = conf.getOrDefault("result_format", LatencyLog.TEXT);
+      if (!latencyLog.equalsIgnoreCase(LatencyLog.TEXT)
+          && !latencyLog.equalsIgnoreCase(LatencyLog.BINARY)
+          && !latencyLog.equalsIgnoreCase(LatencyLog.DEFLATE)) {
+        throw new RuntimeException("Unrecognized result format: " + latencyLog);
+      }
+    }
     long timeoutUs = Long.parseLong(conf.getOrDefault("timeout", "240")) * 1000 * 1000;
     String host = conf.getOrDefault("host", "localhost");
     int logPort = Integer.parseInt(conf.getOrDefault("logger_port", "8888"));
     int controlPort = Integer.parseInt(conf.getOrDefault("control_port", "8889"));
-    String id = conf.getOrDefault("lambda_id", "0");
-    boolean local = Boolean.parseBoolean(conf.getOrDefault("local", "false"));
+    boolean local = Boolean.parseBoolean(conf.getOrDefault("local", "false"))
+        && conf.getOrDefault("result_dir", "").isEmpty();
 
     Logger log;
     try {
-      log = new Logger(host, logPort);
+      log = new Logger(host, logPort, id);
     } catch (IOException e) {
       e.printStackTrace();
       return;
@@ -227,8 +468,24 @@ public class CrailBenchmarkService implements BenchmarkService {
     }
 
     if (!controller.signal(id)) {
+      try {
+        log.abort();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
       return;
     }
+    try {
+      controller.awaitStart();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+      return;
+    }
+    log.info("Started; clock offset to coordinator=" + controller.getOffsetUs() + "us, seed="
+        + seed);
+    int metricsPort = Integer.parseInt(conf.getOrDefault("metrics_port", "8891"));
+    MetricsReporter metrics = new MetricsReporter(host, metricsPort, id, controller.getEpochNs(),
+        intervalNs, sizes.meanSize(), log);
 
     ResultWriter rw;
     try {
@@ -243,15 +500,30 @@ public class CrailBenchmarkService implements BenchmarkService {
       return;
     }
 
-    Crail c = new Crail();
+    RunConfig run = new RunConfig();
+    run.keyGens = kGens;
+    run.streams = streams;
+    run.mix = mix;
+    run.trace = distribution.startsWith("trace:");
+    run.sizes = sizes;
+    run.nOps = nOps;
+    run.loader = loader;
+    run.queueDepth = queueDepth;
+    run.targetOpsPerSec = targetOpsPerSec;
+    run.poisson = poisson;
+    run.mode = mode;
+    run.warmUp = warmUp;
+    run.intervalNs = intervalNs;
+    run.latencyLog = latencyLog;
+    run.epochNs = controller.getEpochNs();
+    run.maxUs = timeoutUs;
     try {
-      benchmark(id, c, props, kGen, size, nOps, numLoadThreads, mode, warmUp, timeoutUs, log, rw);
+      benchmark(id, backend, props, run, log, rw, metrics);
     } catch (Exception e) {
-      log.error(e.getMessage());
-      e.printStackTrace(log.getPrintWriter());
-      log.flush();
+      log.error(e.getMessage(), e);
     }
 
+    metrics.close();
     try {
       log.close();
       rw.close();
@@ -260,131 +532,776 @@ public class CrailBenchmarkService implements BenchmarkService {
     }
   }
 
-  private static void benchmark(String id, Crail c, Properties conf, KeyGenerator keyGen,
-      int size, int nOps, int numLoadThreads, int mode, boolean warmUp, long maxUs, Logger log,
-      ResultWriter rw) throws Exception {
-
-    long startUs = nowUs();
-    int errCount = 0;
-    int warmUpCount = nOps / 10;
-    String outPrefix = "/tmp/crail_" + id + "_" + String.valueOf(size);
+  /**
+   * Parses the ratios of a mix mode, e.g., read=0.95,write=0.05, into ratios indexed like PHASES
+   * and normalized to sum to 1.
+   */
+  private static double[] parseMix(String spec) {
+    double[] ratios = new double[PHASES.length];
+    double sum = 0.0;
+    for (String entry : spec.split(",")) {
+      String[] kv = entry.split("=");
+      int p = Arrays.asList(PHASE_NAMES).indexOf(kv[0]);
+      if (p < 0 || kv.length != 2) {
+        throw new RuntimeException("Unrecognized mix entry: " + entry);
+      }
+      ratios[p] = Double.parseDouble(kv[1]);
+      if (ratios[p] < 0.0) {
+        throw new RuntimeException("Negative mix ratio: " + entry);
+      }
+      sum += ratios[p];
+    }
+    if (sum <= 0.0) {
+      throw new RuntimeException("Empty mix: " + spec);
+    }
+    for (int p = 0; p < PHASES.length; p++) {
+      ratios[p] /= sum;
+    }
+    return ratios;
+  }
 
-    log.info("Running function ID=[" + id + "], num_ops=" + nOps + ", timeoutUs=" + maxUs);
+  /**
+   * Returns the random stream of a function: a function of the run's seed and its lambda_id, so
+   * that a run can be reproduced from its seed while every function draws different keys.
+   */
+  private static SplittableRandom functionRandom(long seed, String id) {
+    return new SplittableRandom(seed ^ new SplittableRandom(id.hashCode()).nextLong());
+  }
 
-    if (System.getenv(CRAIL_HOME) == null) {
-      String crailHome = System.getenv(LAMBDA_TASK_ROOT);
-      if (crailHome != null) {
-        log.info("Setting environment variable CRAIL_HOME to " + crailHome);
-        injectEnv(crailHome);
+  /**
+   * Creates the key generators of the client threads for a distribution:
+   * <ul>
+   * <li>sequential: keys 0, 1, 2, ..., partitioned between the threads, and starting over after
+   * the numLoadedKeys existing ones, if any;</li>
+   * <li>uniform:n: keys drawn uniformly from [0, n);</li>
+   * <li>zipf:n:theta[:scrambled]: see {@link ZipfKeyGenerator};</li>
+   * <li>hotspot:n:hotFraction:hotOpFraction: see {@link HotspotKeyGenerator};</li>
+   * <li>exponential:n[:percentile:fraction]: see {@link ExponentialKeyGenerator}; by default 95%
+   * of the keys drawn are in the first 85.71% of the key space;</li>
+   * <li>latest[:theta]: writes insert new keys after the numLoadedKeys existing ones, and reads
+   * favour the most recently written, see {@link LatestKeyGenerator}; theta defaults to 0.01.</li>
+   * </ul>
+   * Random generators draw from streams split off random, one per thread.
+   */
+  private static KeyGenerator[] makeKeyGenerators(String distribution, int numThreads,
+      long numLoadedKeys, SplittableRandom random) {
+    String[] parts = distribution.split(":");
+    String name = parts[0];
+    KeyGenerator[] kGens = new KeyGenerator[numThreads];
+    LatestKeyGenerator.Inserts inserts = new LatestKeyGenerator.Inserts(numLoadedKeys);
+    for (int t = 0; t < numThreads; t++) {
+      SplittableRandom r = random.split();
+      if (name.equalsIgnoreCase("sequential") && numLoadedKeys > 0) {
+        // With fewer loaded keys than threads, threads past the last key share the first ones
+        long stride = Math.min(numThreads, numLoadedKeys);
+        kGens[t] = new SequentialKeyGenerator(t % stride, stride, numLoadedKeys);
+      } else if (name.equalsIgnoreCase("sequential")) {
+        kGens[t] = new SequentialKeyGenerator(t, numThreads);
+      } else if (name.equalsIgnoreCase("uniform")) {
+        kGens[t] = new UniformKeyGenerator(Long.parseLong(parts[1]), r);
+      } else if (name.equalsIgnoreCase("zipf")) {
+        kGens[t] = new ZipfKeyGenerator(Double.parseDouble(parts[2]), Integer.parseInt(parts[1]),
+            parts.length > 3 && parts[3].equalsIgnoreCase("scrambled"), r);
+      } else if (name.equalsIgnoreCase("hotspot")) {
+        kGens[t] = new HotspotKeyGenerator(Long.parseLong(parts[1]), Double.parseDouble(parts[2]),
+            Double.parseDouble(parts[3]), r);
+      } else if (name.equalsIgnoreCase("exponential")) {
+        kGens[t] = new ExponentialKeyGenerator(Long.parseLong(parts[1]),
+            parts.length > 2 ? Double.parseDouble(parts[2]) : 95.0,
+            parts.length > 3 ? Double.parseDouble(parts[3]) : 0.8571, r);
+      } else if (name.equalsIgnoreCase("latest")) {
+        kGens[t] = new LatestKeyGenerator(parts.length > 1 ? Double.parseDouble(parts[1]) : 0.01,
+            inserts, r);
       } else {
-        log.warn("CRAIL_HOME is not set, may not load appropriate configuration variables");
+        throw new RuntimeException("Unrecognized key distribution: " + distribution);
       }
     }
+    return kGens;
+  }
+
+  private static StorageBackend<?> makeBackend(String name) {
+    if (name.equalsIgnoreCase("crail")) {
+      return new Crail();
+    } else if (name.equalsIgnoreCase("local")) {
+      return new LocalFileBackend();
+    } else if (name.equalsIgnoreCase("memory")) {
+      return new MemoryBackend();
+    }
+    throw new RuntimeException("Unrecognized storage backend: " + name);
+  }
+
+  /**
+   * Runs the phases of run.mode on c, then the mix or trace of run.streams, if any.
+   */
+  private static <S> void benchmark(String id, StorageBackend<S> c, Properties conf,
+      RunConfig run, Logger log, ResultWriter rw, MetricsReporter metrics) throws Exception {
+
+    long startUs = nowUs();
+    int warmUpCount = run.nOps / 10;
+    // Results of runs with variable object sizes are labeled with size 0
+    SizeDistribution sizes = run.sizes;
+    String outPrefix = "/tmp/crail_" + id + "_" + (sizes.isFixed() ? sizes.maxSize() : 0);
+    // Latencies of data operations are recorded by size class when sizes vary, as they may in a
+    // trace whatever the size setting
+    boolean bySize = !sizes.isFixed() || run.trace;
+
+    log.info("Running function ID=[" + id + "], num_ops=" + run.nOps + ", client_threads="
+        + run.keyGens.length + ", queue_depth=" + run.queueDepth + ", timeoutUs=" + run.maxUs);
+    if (!sizes.isFixed()) {
+      log.info("Object sizes: min=" + sizes.minSize() + ", max=" + sizes.maxSize() + ", mean="
+          + String.format(Locale.ROOT, "%.1f", sizes.meanSize()));
+    }
+    if (run.targetOpsPerSec > 0) {
+      log.info("Open-loop load: target_ops_per_sec=" + run.targetOpsPerSec + ", arrival="
+          + (run.poisson ? "poisson" : "constant"));
+    }
 
     log.info("Initializing storage interface...");
-    c.init(conf, log, (mode & BENCHMARK_CREATE) == BENCHMARK_CREATE);
+    c.init(conf, log, (run.mode & BENCHMARK_CREATE) == BENCHMARK_CREATE);
+    // Operations of a trace are only known as it is replayed, see runStream
+    for (int p = 0; p < PHASES.length; p++) {
+      boolean needed = (run.mode & PHASES[p]) == PHASES[p]
+          || run.mix != null && run.mix[p] > 0.0;
+      if (needed && !c.supports(PHASE_NAMES[p])) {
+        throw new IllegalArgumentException("The " + conf.getProperty("backend", "crail")
+            + " backend does not support " + PHASE_NAMES[p] + " operations");
+      }
+    }
 
-    if ((mode & BENCHMARK_LOAD) == BENCHMARK_LOAD) {
+    if (run.loader != null) {
       log.info("Loading data...");
-      c.load(nOps, numLoadThreads);
+      run.loader.load(c, log);
       log.info("Loading complete.");
     }
 
-    if ((mode & BENCHMARK_WRITE) == BENCHMARK_WRITE) {
-      BufferedWriter lw = new BufferedWriter(new FileWriter(outPrefix + "_write_latency.txt"));
-      BufferedWriter tw = new BufferedWriter(new FileWriter(outPrefix + "_write_throughput.txt"));
+    @SuppressWarnings("unchecked")
+    S[][] slots = (S[][]) new Object[run.keyGens.length][run.queueDepth];
+    for (S[] workerSlots : slots) {
+      for (int i = 0; i < run.queueDepth; i++) {
+        workerSlots[i] = c.allocateSlot();
+      }
+    }
+
+    // A phase stopped by the coordinator keeps its results, but the phases after it are skipped
+    for (int p = 0; p < PHASES.length && !metrics.stopRequested(); p++) {
+      if ((run.mode & PHASES[p]) == PHASES[p]) {
+        runPhase(PHASE_NAMES[p], PHASES[p], c, slots, run.keyGens, run.nOps,
+            run.warmUp ? warmUpCount : 0, run.targetOpsPerSec, run.poisson, run.intervalNs,
+            run.latencyLog, sizes, run.epochNs, startUs, run.maxUs, outPrefix, log, rw, metrics);
+      }
+    }
+    if (run.streams != null && !metrics.stopRequested()) {
+      runMixedPhase(c, slots, run.streams, run.intervalNs, run.latencyLog, bySize, run.epochNs,
+          startUs, run.maxUs, outPrefix, log, rw, metrics);
+    }
+
+    Map<String, Long> stats = c.stats();
+    if (!stats.isEmpty()) {
+      log.info("Backend statistics: " + stats);
+      String statsFile = outPrefix + "_stats.txt";
+      BufferedWriter sw = new BufferedWriter(new FileWriter(statsFile));
+      for (Map.Entry<String, Long> stat : stats.entrySet()) {
+        sw.append(stat.getKey()).append("\t").append(String.valueOf(stat.getValue())).append("\n");
+      }
+      sw.close();
+      rw.writeResult(statsFile);
+    }
+
+    for (S[] workerSlots : slots) {
+      for (S slot : workerSlots) {
+        c.freeSlot(slot);
+      }
+    }
+
+    if ((run.mode & BENCHMARK_DESTROY) == BENCHMARK_DESTROY) {
+      c.destroy();
+      log.info("Destroyed storage interface.");
+    }
+  }
+
+  private static <S> void runPhase(String name, int op, StorageBackend<S> c, S[][] slots,
+      KeyGenerator[] keyGens, int nOps, int warmUpOps, double targetOpsPerSec, boolean poisson,
+      long intervalNs, String latencyLog, SizeDistribution sizes, long epochNs, long startUs,
+      long maxUs, String outPrefix, Logger log, ResultWriter rw, MetricsReporter metrics)
+      throws Exception {
+    int numWorkers = keyGens.length;
+    double workerOpsPerSec = targetOpsPerSec / numWorkers;
+    String latencyFile = outPrefix + "_" + name + "_latency"
+        + (latencyLog == null ? ".txt" : LatencyLog.suffix(latencyLog));
+    String[] workerLatencyFiles = new String[numWorkers];
+    for (int t = 0; t < numWorkers; t++) {
+      workerLatencyFiles[t] = numWorkers == 1 ? latencyFile : latencyFile + "." + t;
+    }
+    for (KeyGenerator keyGen : keyGens) {
+      keyGen.reset();
+    }
+
+    if (warmUpOps > 0) {
+      log.info("Warm-up " + name + " ops...");
+      runWorkers(numWorkers, t -> runOps(op, c, slots[t], keyGens[t], sizes,
+          share(warmUpOps, t, numWorkers), workerOpsPerSec, poisson, startUs, maxUs, log, null,
+          metrics));
+    }
+
+    log.info("Starting " + name + " ops...");
+    int[] completed = new int[numWorkers];
+    LatencyRecorder[] recorders = new LatencyRecorder[numWorkers];
+    LatencyRecorder.Intervals intervals = new LatencyRecorder.Intervals(intervalNs);
+    boolean moveData = op == BENCHMARK_READ || op == BENCHMARK_WRITE;
+    metrics.beginPhase(name, new LatencyRecorder.Intervals[]{intervals}, new boolean[]{moveData});
+    long beginNs = System.nanoTime();
+    runWorkers(numWorkers, t -> {
+      LatencyLog lw = latencyLog != null
+          ? LatencyLog.open(workerLatencyFiles[t], latencyLog) : null;
+      try (LatencyRecorder recorder = new LatencyRecorder(intervals, epochNs, intervalNs, lw,
+          moveData && !sizes.isFixed())) {
+        recorders[t] = recorder;
+        completed[t] = runOps(op, c, slots[t], keyGens[t], sizes, share(nOps, t, numWorkers),
+            workerOpsPerSec, poisson, startUs, maxUs, log, recorder, metrics);
+      }
+    });
+    long endNs = System.nanoTime();
+    metrics.endPhase();
+    if (metrics.stopRequested()) {
+      log.warn("Stopped by the coordinator: " + metrics.getStopReason());
+    }
+    log.info("Finished " + name + " ops.");
+
+    int totalCompleted = 0;
+    for (int n : completed) {
+      totalCompleted += n;
+    }
+    writeResults(name, totalCompleted, endNs - beginNs, recorders, intervals, intervalNs,
+        latencyLog != null ? workerLatencyFiles : null, latencyFile, outPrefix, log, rw);
+  }
+
+  /**
+   * Writes the results of an operation type in a phase: its throughput, latency distribution,
+   * interval series, latency profile by size class (if recorded), number of misses (if any) and
+   * (if workerLatencyFiles is not null) raw latency log, merged across the workers' recorders,
+   * some of which may be null.
+   */
+  private static void writeResults(String name, long totalCompleted, long elapsedNs,
+      LatencyRecorder[] recorders, LatencyRecorder.Intervals intervals, long intervalNs,
+      String[] workerLatencyFiles, String latencyFile, String outPrefix, Logger log,
+      ResultWriter rw) throws IOException {
+    String histogramFile = outPrefix + "_" + name + "_histogram.txt";
+    String intervalsFile = outPrefix + "_" + name + "_intervals.txt";
+    String throughputFile = outPrefix + "_" + name + "_throughput.txt";
+    String sizesFile = outPrefix + "_" + name + "_sizes.txt";
+    String missesFile = outPrefix + "_" + name + "_misses.txt";
+
+    double elapsedS = ((double) elapsedNs) / 1e9;
+    BufferedWriter tw = new BufferedWriter(new FileWriter(throughputFile));
+    tw.append(String.valueOf(totalCompleted / elapsedS)).append("\n");
+    tw.close();
+    rw.writeResult(throughputFile);
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (LatencyRecorder recorder : recorders) {
+      if (recorder != null) {
+        histogram.add(recorder.getTotal());
+      }
+    }
+    log.info(name + " latency (us): mean="
+        + String.format(Locale.ROOT, "%.3f", histogram.getMean() / 1000.0)
+        + ", p50=" + LatencyHistogram.toUs(histogram.getValueAtPercentile(50.0))
+        + ", p99=" + LatencyHistogram.toUs(histogram.getValueAtPercentile(99.0))
+        + ", p99.9=" + LatencyHistogram.toUs(histogram.getValueAtPercentile(99.9))
+        + ", max=" + LatencyHistogram.toUs(histogram.getMax()));
+    try (BufferedWriter hw = new BufferedWriter(new FileWriter(histogramFile))) {
+      histogram.writeDistribution(hw);
+    }
+    rw.writeResult(histogramFile);
+
+    LatencyHistogram[] bySize = null;
+    for (LatencyRecorder recorder : recorders) {
+      if (recorder != null && recorder.getBySize() != null) {
+        bySize = bySize == null ? new LatencyHistogram[SizeDistribution.NUM_CLASSES] : bySize;
+        for (int c = 0; c < SizeDistribution.NUM_CLASSES; c++) {
+          if (recorder.getBySize()[c] != null) {
+            bySize[c] = bySize[c] == null ? new LatencyHistogram() : bySize[c];
+            bySize[c].add(recorder.getBySize()[c]);
+          }
+        }
+      }
+    }
+    if (bySize != null) {
+      try (BufferedWriter sw = new BufferedWriter(new FileWriter(sizesFile))) {
+        writeSizeClasses(bySize, sw);
+      }
+      rw.writeResult(sizesFile);
+    }
+
+    long misses = 0;
+    for (LatencyRecorder recorder : recorders) {
+      if (recorder != null) {
+        misses += recorder.getMisses();
+      }
+    }
+    if (misses > 0) {
+      log.info(name + ": " + misses + " operations found no object");
+      try (BufferedWriter mw = new BufferedWriter(new FileWriter(missesFile))) {
+        mw.append(String.valueOf(misses)).append("\n");
+      }
+      rw.writeResult(missesFile);
+    }
+
+    if (intervalNs > 0) {
+      try (BufferedWriter iw = new BufferedWriter(new FileWriter(intervalsFile))) {
+        intervals.write(iw);
+      }
+      rw.writeResult(intervalsFile);
+    }
+
+    if (workerLatencyFiles != null) {
+      if (workerLatencyFiles.length > 1 || !workerLatencyFiles[0].equals(latencyFile)) {
+        mergeFiles(workerLatencyFiles, latencyFile);
+      }
+      rw.writeResult(latencyFile);
+    }
+  }
+
+  /**
+   * Writes one line per size class with any operations: the smallest object size in the class in
+   * bytes, the number of operations, and their mean, 50th, 99th, 99.9th percentile and maximum
+   * latencies in microseconds.
+   */
+  private static void writeSizeClasses(LatencyHistogram[] bySize, Writer out) throws IOException {
+    for (int c = 0; c < bySize.length; c++) {
+      LatencyHistogram h = bySize[c];
+      if (h == null) {
+        continue;
+      }
+      out.append(String.valueOf(SizeDistribution.classMin(c))).append("\t")
+          .append(String.valueOf(h.getTotalCount())).append("\t")
+          .append(String.format(Locale.ROOT, "%.3f", h.getMean() / 1000.0)).append("\t")
+          .append(LatencyHistogram.toUs(h.getValueAtPercentile(50.0))).append("\t")
+          .append(LatencyHistogram.toUs(h.getValueAtPercentile(99.0))).append("\t")
+          .append(LatencyHistogram.toUs(h.getValueAtPercentile(99.9))).append("\t")
+          .append(LatencyHistogram.toUs(h.getMax())).append("\n");
+    }
+  }
+
+  /**
+   * Runs the operation streams of the workers in a single phase, recording the latencies of each
+   * operation type separately and writing the results of each type that occurred as if it had
+   * run in a phase of its own, named mixed_&lt;type&gt;.
+   */
+  private static <S> void runMixedPhase(StorageBackend<S> c, S[][] slots, OpStreams streams,
+      long intervalNs, String latencyLog, boolean bySize, long epochNs, long startUs, long maxUs,
+      String outPrefix, Logger log, ResultWriter rw, MetricsReporter metrics) throws Exception {
+    int numWorkers = slots.length;
+    LatencyRecorder[][] recorders = new LatencyRecorder[PHASES.length][numWorkers];
+    LatencyRecorder.Intervals[] intervals = new LatencyRecorder.Intervals[PHASES.length];
+    boolean[] moveData = new boolean[PHASES.length];
+    String[] latencyFiles = new String[PHASES.length];
+    for (int p = 0; p < PHASES.length; p++) {
+      intervals[p] = new LatencyRecorder.Intervals(intervalNs);
+      moveData[p] = PHASES[p] == BENCHMARK_READ || PHASES[p] == BENCHMARK_WRITE;
+      latencyFiles[p] = outPrefix + "_mixed_" + PHASE_NAMES[p] + "_latency"
+          + (latencyLog == null ? ".txt" : LatencyLog.suffix(latencyLog));
+    }
 
-      if (warmUp) {
-        log.info("Warm-up writes...");
-        for (int i = 0; i < warmUpCount && timeBound(startUs, maxUs, log); ++i) {
-          try {
-            c.write(keyGen.next());
-          } catch (RuntimeException e) {
-            handleError(log, ++errCount, e);
+    log.info("Starting mixed ops...");
+    metrics.beginPhase("mixed", intervals, moveData);
+    long beginNs = System.nanoTime();
+    runWorkers(numWorkers, t -> {
+      RecorderFactory factory = p -> {
+        String file = numWorkers == 1 ? latencyFiles[p] : latencyFiles[p] + "." + t;
+        LatencyLog lw = latencyLog != null ? LatencyLog.open(file, latencyLog) : null;
+        recorders[p][t] = new LatencyRecorder(intervals[p], epochNs, intervalNs, lw,
+            moveData[p] && bySize);
+        return recorders[p][t];
+      };
+      try (OpStream stream = streams.open(t)) {
+        runStream(c, slots[t], stream, factory, startUs, maxUs, log, metrics);
+      } finally {
+        for (int p = 0; p < PHASES.length; p++) {
+          if (recorders[p][t] != null) {
+            recorders[p][t].close();
           }
         }
       }
+    });
+    long endNs = System.nanoTime();
+    metrics.endPhase();
+    if (metrics.stopRequested()) {
+      log.warn("Stopped by the coordinator: " + metrics.getStopReason());
+    }
+    log.info("Finished mixed ops.");
+
+    for (int p = 0; p < PHASES.length; p++) {
+      long completed = 0;
+      List<String> workerLatencyFiles = new ArrayList<>();
+      for (int t = 0; t < numWorkers; t++) {
+        if (recorders[p][t] != null) {
+          completed += recorders[p][t].getTotal().getTotalCount();
+          workerLatencyFiles.add(numWorkers == 1 ? latencyFiles[p] : latencyFiles[p] + "." + t);
+        }
+      }
+      if (!workerLatencyFiles.isEmpty()) {
+        writeResults("mixed_" + PHASE_NAMES[p], completed, endNs - beginNs, recorders[p],
+            intervals[p], intervalNs,
+            latencyLog != null ? workerLatencyFiles.toArray(new String[0]) : null, latencyFiles[p],
+            outPrefix, log, rw);
+      }
+    }
+  }
 
-      log.info("Starting writes...");
-      long wBegin = nowUs();
-      for (int i = 0; i < nOps && timeBound(startUs, maxUs, log); ++i) {
-        long tBegin = nowUs();
+  /**
+   * The workload and settings of a function's run, as parsed from its configuration by handler.
+   */
+  private static class RunConfig {
+
+    private KeyGenerator[] keyGens;
+    // Operation streams of a mix or trace, or null to only run the phases of mode
+    private OpStreams streams;
+    private double[] mix;
+    private boolean trace;
+    private SizeDistribution sizes;
+    private int nOps;
+    // Loads the keys before the phases, or null to not load any
+    private BulkLoader loader;
+    private int queueDepth;
+    private double targetOpsPerSec;
+    private boolean poisson;
+    private int mode;
+    private boolean warmUp;
+    private long intervalNs;
+    private String latencyLog;
+    private long epochNs;
+    private long maxUs;
+  }
+
+  private interface OpStreams {
+
+    OpStream open(int worker) throws IOException;
+  }
+
+  private interface RecorderFactory {
+
+    LatencyRecorder make(int op) throws IOException;
+  }
+
+  private interface WorkerTask {
+
+    void run(int worker) throws Exception;
+  }
+
+  /**
+   * Runs task on numWorkers threads, one per worker index, and waits for all of them to finish.
+   */
+  private static void runWorkers(int numWorkers, WorkerTask task) throws Exception {
+    if (numWorkers == 1) {
+      task.run(0);
+      return;
+    }
+
+    Exception[] errors = new Exception[numWorkers];
+    Thread[] workers = new Thread[numWorkers];
+    for (int t = 0; t < numWorkers; t++) {
+      final int idx = t;
+      workers[t] = new Thread(() -> {
         try {
-          c.write(keyGen.next());
-        } catch (RuntimeException e) {
-          --i;
-          handleError(log, ++errCount, e);
+          task.run(idx);
+        } catch (Exception e) {
+          errors[idx] = e;
         }
-        long tEnd = nowUs();
-        lw.append(String.valueOf(tEnd)).append("\t").append(String.valueOf(tEnd - tBegin)).append("\n");
+      });
+      workers[t].start();
+    }
+
+    for (Thread t : workers) {
+      t.join();
+    }
+    for (Exception e : errors) {
+      if (e != null) {
+        throw e;
       }
-      long wEnd = nowUs();
-      log.info("Finished writes.");
+    }
+  }
 
-      double wElapsedS = ((double) (wEnd - wBegin)) / 1000000.0;
-      tw.append(String.valueOf(nOps / wElapsedS)).append("\n");
+  /**
+   * Returns worker's share of n operations when split as evenly as possible across numWorkers.
+   */
+  private static int share(int n, int worker, int numWorkers) {
+    return n / numWorkers + (worker < n % numWorkers ? 1 : 0);
+  }
 
-      lw.close();
-      rw.close();
-      rw.writeResult(outPrefix + "_write_latency.txt");
-      rw.writeResult(outPrefix + "_write_throughput.txt");
-    }
-
-    errCount = 0;
-    keyGen.reset();
-    if ((mode & BENCHMARK_READ) == BENCHMARK_READ) {
-      BufferedWriter lr = new BufferedWriter(new FileWriter(outPrefix + "_read_latency.txt"));
-      BufferedWriter tr = new BufferedWriter(new FileWriter(outPrefix + "_read_throughput.txt"));
-
-      if (warmUp) {
-        log.info("Warm-up reads...");
-        for (int i = 0; i < warmUpCount && timeBound(startUs, maxUs, log); ++i) {
-          try {
-            String retValue = c.read(keyGen.next());
-            assert retValue.length() == size;
-          } catch (RuntimeException e) {
-            handleError(log, ++errCount, e);
+  private static void mergeFiles(String[] parts, String dest) throws IOException {
+    try (FileChannel out = FileChannel.open(Paths.get(dest), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (String part : parts) {
+        try (FileChannel in = FileChannel.open(Paths.get(part), StandardOpenOption.READ)) {
+          long position = 0;
+          long size = in.size();
+          while (position < size) {
+            position += in.transferTo(position, size - position, out);
           }
         }
+        Files.delete(Paths.get(part));
       }
+    }
+  }
 
-      log.info("Starting reads...");
-      long rBegin = nowUs();
-      for (int i = 0; i < nOps && timeBound(startUs, maxUs, log); ++i) {
-        long tBegin = nowUs();
+  /**
+   * Runs n operations keeping up to slots.length of them in flight, and returns the number of
+   * operations that completed successfully. Latency is measured from issue to completion of each
+   * operation; recorder may be null to skip recording (e.g., during warm-up). An operation that
+   * finds no object for its key (e.g., a read or delete of a key that was never written or was
+   * deleted) is a miss: it counts towards the n operations and is counted in recorder, but is
+   * neither a success nor an error. Errors are counted in metrics, and the run stops early if the
+   * coordinator asks it to.
+   *
+   * If opsPerSec is positive the operations are issued open-loop according to an arrival
+   * schedule instead, and latency is measured from each operation's intended send time, so that
+   * stalls which delay later sends (e.g., because all slots are in flight) are still charged to
+   * those operations.
+   */
+  private static <S> int runOps(int op, StorageBackend<S> c, S[] slots, KeyGenerator keyGen,
+      SizeDistribution sizes, int n, double opsPerSec, boolean poisson, long startUs, long maxUs,
+      Logger log, LatencyRecorder recorder, MetricsReporter metrics) throws IOException {
+    int depth = slots.length;
+    PendingOp[] pending = new PendingOp[depth];
+    long[] beginNs = new long[depth];
+    long[] keys = new long[depth];
+    ArrivalSchedule schedule = opsPerSec > 0
+        ? new ArrivalSchedule(opsPerSec, poisson, System.nanoTime()) : null;
+    int errCount = 0;
+    int issued = 0;
+    int completed = 0;
+    int misses = 0;
+    while (completed + misses < n && !metrics.stopRequested()
+        && timeBound(startUs, maxUs, log)) {
+      for (int s = 0; s < depth; s++) {
+        if (pending[s] == null) {
+          if (issued < n) {
+            if (schedule == null) {
+              beginNs[s] = System.nanoTime();
+            } else if (schedule.peek() - System.nanoTime() <= 0) {
+              beginNs[s] = schedule.advance();
+            } else {
+              continue;
+            }
+            try {
+              keys[s] = op == BENCHMARK_WRITE ? keyGen.nextWriteKey() : keyGen.nextKey();
+            } catch (Exception e) {
+              metrics.error();
+              handleError(log, ++errCount, e);
+              continue;
+            }
+            try {
+              pending[s] = issue(op, c, keys[s], sizes.sizeOf(keys[s]), slots[s]);
+              issued++;
+            } catch (FileNotFoundException e) {
+              writeDone(op, keyGen, keys[s], false);
+              issued++;
+              ++misses;
+              if (recorder != null) {
+                recorder.miss();
+              }
+            } catch (Exception e) {
+              writeDone(op, keyGen, keys[s], false);
+              metrics.error();
+              handleError(log, ++errCount, e);
+            }
+          }
+          continue;
+        }
+
+        boolean done;
         try {
-          String retValue = c.read(keyGen.next());
-          assert retValue.length() == size;
-        } catch (RuntimeException e) {
-          --i;
+          done = pending[s].poll();
+        } catch (FileNotFoundException e) {
+          pending[s] = null;
+          writeDone(op, keyGen, keys[s], false);
+          ++misses;
+          if (recorder != null) {
+            recorder.miss();
+          }
+          continue;
+        } catch (Exception e) {
+          pending[s] = null;
+          --issued;
+          writeDone(op, keyGen, keys[s], false);
+          metrics.error();
           handleError(log, ++errCount, e);
+          continue;
         }
-        long tEnd = nowUs();
-        lr.append(String.valueOf(tEnd)).append("\t").append(String.valueOf(tEnd - tBegin)).append("\n");
+        if (done) {
+          pending[s] = null;
+          writeDone(op, keyGen, keys[s], true);
+          ++completed;
+          if (recorder != null) {
+            long endNs = System.nanoTime();
+            recorder.record(endNs, endNs - beginNs[s], sizes.sizeOf(keys[s]));
+          }
+        }
+      }
+    }
+    drain(pending);
+    // The outcome of operations abandoned by a stopped or timed out phase is not known
+    for (int s = 0; s < depth; s++) {
+      if (pending[s] != null) {
+        writeDone(op, keyGen, keys[s], false);
       }
-      long rEnd = nowUs();
-      log.info("Finished reads.");
+    }
+    return completed;
+  }
 
-      double rElapsedS = ((double) (rEnd - rBegin)) / 1000000.0;
-      tr.append(String.valueOf(nOps / rElapsedS)).append("\n");
+  /**
+   * Runs the operations of stream keeping up to slots.length of them in flight, recording each
+   * into the recorder for its type, made by recorders on first use. Operations with an intended
+   * issue time are issued no earlier than that, and their latency is measured from it, as in an
+   * open-loop run. Operations that find no object for their key are counted as misses, as in
+   * runOps. An operation that the backend does not support fails the stream.
+   */
+  private static <S> void runStream(StorageBackend<S> c, S[] slots, OpStream stream,
+      RecorderFactory recorders, long startUs, long maxUs, Logger log, MetricsReporter metrics)
+      throws IOException {
+    int depth = slots.length;
+    PendingOp[] pending = new PendingOp[depth];
+    long[] beginNs = new long[depth];
+    int[] ops = new int[depth];
+    long[] keys = new long[depth];
+    int[] sizes = new int[depth];
+    LatencyRecorder[] byOp = new LatencyRecorder[PHASES.length];
+    boolean[] supported = new boolean[PHASES.length];
+    for (int p = 0; p < PHASES.length; p++) {
+      supported[p] = c.supports(PHASE_NAMES[p]);
+    }
+    long streamStartNs = System.nanoTime();
+    int errCount = 0;
+    int inFlight = 0;
+    boolean more = stream.next();
+    while ((more || inFlight > 0) && !metrics.stopRequested() && timeBound(startUs, maxUs, log)) {
+      for (int s = 0; s < depth; s++) {
+        if (pending[s] == null) {
+          if (more) {
+            long offsetNs = stream.offsetNs();
+            if (offsetNs < 0) {
+              beginNs[s] = System.nanoTime();
+            } else if (streamStartNs + offsetNs - System.nanoTime() <= 0) {
+              beginNs[s] = streamStartNs + offsetNs;
+            } else {
+              continue;
+            }
+            ops[s] = stream.op();
+            keys[s] = stream.key();
+            sizes[s] = stream.size();
+            if (!supported[ops[s]]) {
+              throw new IllegalArgumentException(
+                  "The backend does not support " + PHASE_NAMES[ops[s]] + " operations");
+            }
+            try {
+              pending[s] = issue(PHASES[ops[s]], c, keys[s], sizes[s], slots[s]);
+              inFlight++;
+            } catch (FileNotFoundException e) {
+              stream.done(ops[s], keys[s], false);
+              recorder(byOp, recorders, ops[s]).miss();
+            } catch (Exception e) {
+              stream.done(ops[s], keys[s], false);
+              metrics.error();
+              handleError(log, ++errCount, e);
+            }
+            more = stream.next();
+          }
+          continue;
+        }
 
-      lr.close();
-      tr.close();
-      rw.writeResult(outPrefix + "_read_latency.txt");
-      rw.writeResult(outPrefix + "_read_throughput.txt");
+        boolean done;
+        try {
+          done = pending[s].poll();
+        } catch (FileNotFoundException e) {
+          pending[s] = null;
+          inFlight--;
+          stream.done(ops[s], keys[s], false);
+          recorder(byOp, recorders, ops[s]).miss();
+          continue;
+        } catch (Exception e) {
+          pending[s] = null;
+          inFlight--;
+          stream.done(ops[s], keys[s], false);
+          metrics.error();
+          handleError(log, ++errCount, e);
+          continue;
+        }
+        if (done) {
+          pending[s] = null;
+          inFlight--;
+          stream.done(ops[s], keys[s], true);
+          long endNs = System.nanoTime();
+          recorder(byOp, recorders, ops[s]).record(endNs, endNs - beginNs[s], sizes[s]);
+        }
+      }
     }
+    drain(pending);
+    for (int s = 0; s < depth; s++) {
+      if (pending[s] != null) {
+        stream.done(ops[s], keys[s], false);
+      }
+    }
+    // The operation drawn but not issued when a stop or timeout ended the stream
+    if (more) {
+      stream.done(stream.op(), stream.key(), false);
+    }
+  }
 
-    if ((mode & BENCHMARK_DESTROY) == BENCHMARK_DESTROY) {
-      c.destroy();
-      log.info("Destroyed storage interface.");
+  /**
+   * Returns the recorder for op in byOp, made by recorders on first use.
+   */
+  private static LatencyRecorder recorder(LatencyRecorder[] byOp, RecorderFactory recorders,
+      int op) throws IOException {
+    if (byOp[op] == null) {
+      byOp[op] = recorders.make(op);
+    }
+    return byOp[op];
+  }
+
+  private static void writeDone(int op, KeyGenerator keyGen, long key, boolean success) {
+    if (op == BENCHMARK_WRITE) {
+      keyGen.writeDone(key, success);
+    }
+  }
+
+  private static <S> PendingOp issue(int op, StorageBackend<S> c, long key, int size, S slot)
+      throws Exception {
+    switch (op) {
+      case BENCHMARK_WRITE:
+        return c.writeAsync(key, size, slot);
+      case BENCHMARK_READ:
+        return c.readAsync(key, size, slot);
+      case BENCHMARK_MKDIR:
+        return c.mkdirAsync(key);
+      case BENCHMARK_TOUCH:
+        return c.touchAsync(key);
+      case BENCHMARK_LOOKUP:
+        return c.lookupAsync(key);
+      case BENCHMARK_LIST:
+        return c.listAsync();
+      case BENCHMARK_DELETE:
+        return c.deleteAsync(key);
+      default:
+        throw new IllegalArgumentException("Unrecognized operation: " + op);
+    }
+  }
+
+  static void drain(PendingOp[] pending) {
+    for (PendingOp p : pending) {
+      try {
+        while (p != null && !p.poll()) {
+          Thread.yield();
+        }
+      } catch (Exception e) {
+        // Operations left over from a timed out phase are abandoned
+      }
     }
   }
 
-  private static void handleError(Logger log, int errCount, RuntimeException e) throws IOException {
+  private static void handleError(Logger log, int errCount, Exception e) throws IOException {
     if (errCount > MAX_ERRORS) {
-      log.error("Too many errors; last error:");
-      e.printStackTrace(log.getPrintWriter());
-      log.flush();
+      log.error("Too many errors; last error:", e);
       log.close();
       System.exit(1);
     }
@@ -401,34 +1318,4 @@ public class CrailBenchmarkService implements BenchmarkService {
   private static long nowUs() {
     return System.nanoTime() / 1000;
   }
-
-  private static void injectEnv(String value) throws Exception {
-    Class<?> processEnvironment = Class.forName("java.lang.ProcessEnvironment");
-
-    Field unmodifiableMapField = getAccessibleField(processEnvironment,
-        "theUnmodifiableEnvironment");
-    Object unmodifiableMap = unmodifiableMapField.get(null);
-    injectIntoUnmodifiableMap(value, unmodifiableMap);
-
-    Field mapField = getAccessibleField(processEnvironment, "theEnvironment");
-    Map<String, String> map = (Map<String, String>) mapField.get(null);
-    map.put(CrailBenchmarkService.CRAIL_HOME, value);
-  }
-
-  private static Field getAccessibleField(Class<?> clazz, String fieldName)
-      throws NoSuchFieldException {
-
-    Field field = clazz.getDeclaredField(fieldName);
-    field.setAccessible(true);
-    return field;
-  }
-
-  private static void injectIntoUnmodifiableMap(String value, Object map)
-      throws ReflectiveOperationException {
-    Class unmodifiableMap = Class.forName("java.util.Collections$UnmodifiableMap");
-    Field field = getAccessibleField(unmodifiableMap, "m");
-    Object obj = field.get(map);
-    ((Map<String, String>) obj).put(CrailBenchmarkService.CRAIL_HOME, value);
-  }
-
 }
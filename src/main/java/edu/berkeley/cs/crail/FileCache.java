@@ -0,0 +1,60 @@
+package edu.berkeley.cs.crail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.crail.CrailFile;
+
+/**
+ * A bounded, thread-safe LRU cache of open file handles keyed by path, which lets repeated reads
+ * of the same key skip the namenode lookup.
+ */
+class FileCache {
+
+  private final LinkedHashMap<String, CrailFile> files;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  FileCache(int capacity) {
+    this.files = new LinkedHashMap<String, CrailFile>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CrailFile> eldest) {
+        if (size() > capacity) {
+          ++evictions;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  synchronized CrailFile get(String path) {
+    CrailFile file = files.get(path);
+    if (file == null) {
+      ++misses;
+    } else {
+      ++hits;
+    }
+    return file;
+  }
+
+  synchronized void put(String path, CrailFile file) {
+    files.put(path, file);
+  }
+
+  synchronized void invalidate(String path) {
+    files.remove(path);
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+
+  synchronized long evictions() {
+    return evictions;
+  }
+}
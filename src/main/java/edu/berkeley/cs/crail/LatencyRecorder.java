@@ -0,0 +1,198 @@
+package edu.berkeley.cs.crail;
+
+import edu.berkeley.cs.backend.SizeDistribution;
+import edu.berkeley.cs.server.LatencyHistogram;
+import edu.berkeley.cs.server.LatencyLog;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Records the latencies of one worker's operations in a phase: into a histogram for the whole
+ * phase, into a histogram for the current interval of intervalNs (if positive), which is merged
+ * into the shared interval series whenever an operation completes in a later interval, into a
+ * histogram for the size class of the operation's object if bySize is set, and, only if
+ * rawLog is not null, as one record per operation in the raw latency log. Operations that found
+ * no object for their key (misses) are only counted.
+ *
+ * The series also reads the current interval of every open recorder, so that a snapshot of an
+ * interval includes the operations of workers that have not completed another one since (e.g.,
+ * because they are stalled); the current interval is therefore only touched under the recorder's
+ * lock, which its own worker almost never contends for.
+ *
+ * Completion times are taken relative to epochNs, the coordinator's time zero on this function's
+ * clock, so that intervals line up and raw logs share one timeline across functions.
+ */
+class LatencyRecorder implements Closeable {
+
+  private final LatencyHistogram total = new LatencyHistogram();
+  private final LatencyHistogram interval = new LatencyHistogram();
+  private final Intervals intervals;
+  private final long epochNs;
+  private final long intervalNs;
+  private final LatencyLog rawLog;
+  private final LatencyHistogram[] bySize;
+  private int intervalIdx;
+  private long intervalEndNs;
+  private long misses;
+
+  LatencyRecorder(Intervals intervals, long epochNs, long intervalNs, LatencyLog rawLog,
+      boolean bySize) {
+    this.intervals = intervals;
+    this.epochNs = epochNs;
+    this.intervalNs = intervalNs;
+    this.rawLog = rawLog;
+    this.bySize = bySize ? new LatencyHistogram[SizeDistribution.NUM_CLASSES] : null;
+    this.intervalEndNs = epochNs + intervalNs;
+    if (intervalNs > 0) {
+      intervals.open(this);
+    }
+  }
+
+  void record(long endNs, long latencyNs, int size) throws IOException {
+    if (intervalNs > 0 && endNs - intervalEndNs >= 0) {
+      int idx = (int) ((endNs - epochNs) / intervalNs);
+      intervals.flush(this, idx);
+      intervalEndNs = epochNs + (idx + 1) * intervalNs;
+    }
+    total.record(latencyNs);
+    synchronized (this) {
+      interval.record(latencyNs);
+    }
+    if (bySize != null) {
+      int c = SizeDistribution.sizeClass(size);
+      if (bySize[c] == null) {
+        bySize[c] = new LatencyHistogram();
+      }
+      bySize[c].record(latencyNs);
+    }
+    if (rawLog != null) {
+      rawLog.append((endNs - epochNs) / 1000, latencyNs / 1000);
+    }
+  }
+
+  void miss() {
+    misses++;
+  }
+
+  LatencyHistogram getTotal() {
+    return total;
+  }
+
+  long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Returns the histograms by size class, with null for classes without operations, or null if
+   * latencies are not recorded by size.
+   */
+  LatencyHistogram[] getBySize() {
+    return bySize;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (intervalNs > 0) {
+      intervals.close(this);
+    }
+    if (rawLog != null) {
+      rawLog.close();
+    }
+  }
+
+  /**
+   * Per-interval histograms of a phase, merged across workers, along with the open recorders
+   * whose current intervals are still to be merged.
+   */
+  static class Intervals {
+
+    private final long intervalNs;
+    private final ArrayList<LatencyHistogram> histograms = new ArrayList<>();
+    private final Set<LatencyRecorder> open = new HashSet<>();
+
+    Intervals(long intervalNs) {
+      this.intervalNs = intervalNs;
+    }
+
+    synchronized void open(LatencyRecorder r) {
+      open.add(r);
+    }
+
+    /**
+     * Merges the current interval of r into the series, and makes idx its current interval, as
+     * one step, so that a concurrent snapshot counts its operations exactly once.
+     */
+    synchronized void flush(LatencyRecorder r, int idx) {
+      synchronized (r) {
+        if (r.interval.getTotalCount() > 0) {
+          add(r.intervalIdx, r.interval);
+          r.interval.reset();
+        }
+        r.intervalIdx = idx;
+      }
+    }
+
+    synchronized void close(LatencyRecorder r) {
+      flush(r, r.intervalIdx);
+      open.remove(r);
+    }
+
+    synchronized void add(int idx, LatencyHistogram h) {
+      while (histograms.size() <= idx) {
+        histograms.add(null);
+      }
+      if (histograms.get(idx) == null) {
+        histograms.set(idx, new LatencyHistogram());
+      }
+      histograms.get(idx).add(h);
+    }
+
+    /**
+     * Adds the latencies recorded so far in interval idx to h, including those still in the
+     * current intervals of open recorders.
+     */
+    synchronized void addTo(int idx, LatencyHistogram h) {
+      if (idx >= 0 && idx < histograms.size() && histograms.get(idx) != null) {
+        h.add(histograms.get(idx));
+      }
+      for (LatencyRecorder r : open) {
+        synchronized (r) {
+          if (r.intervalIdx == idx) {
+            h.add(r.interval);
+          }
+        }
+      }
+    }
+
+    /**
+     * Writes one line per interval from the first one with any operations: its end time in
+     * seconds since the coordinator's time zero, the number of operations that completed in it,
+     * their throughput in ops/s, and their 50th, 90th, 99th, 99.9th percentile and maximum
+     * latencies in microseconds.
+     */
+    synchronized void write(Writer out) throws IOException {
+      double intervalS = intervalNs / 1e9;
+      LatencyHistogram empty = new LatencyHistogram();
+      int first = 0;
+      while (first < histograms.size() && histograms.get(first) == null) {
+        ++first;
+      }
+      for (int i = first; i < histograms.size(); i++) {
+        LatencyHistogram h = histograms.get(i) == null ? empty : histograms.get(i);
+        out.append(String.format(Locale.ROOT, "%.3f", (i + 1) * intervalS)).append("\t")
+            .append(String.valueOf(h.getTotalCount())).append("\t")
+            .append(String.format(Locale.ROOT, "%.1f", h.getTotalCount() / intervalS)).append("\t")
+            .append(LatencyHistogram.toUs(h.getValueAtPercentile(50.0))).append("\t")
+            .append(LatencyHistogram.toUs(h.getValueAtPercentile(90.0))).append("\t")
+            .append(LatencyHistogram.toUs(h.getValueAtPercentile(99.0))).append("\t")
+            .append(LatencyHistogram.toUs(h.getValueAtPercentile(99.9))).append("\t")
+            .append(LatencyHistogram.toUs(h.getMax())).append("\n");
+      }
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package edu.berkeley.cs.crail;
+
+import edu.berkeley.cs.crail.CrailBenchmarkService.Logger;
+import edu.berkeley.cs.server.LatencyHistogram;
+import edu.berkeley.cs.server.MetricsProtocol;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes a snapshot of the running phase to the coordinator's MetricsServer shortly after the end
+ * of every interval, built from the phase's interval histograms (including the intervals the
+ * workers are still recording into, see {@link LatencyRecorder}), and watches for the coordinator
+ * asking the run to stop (e.g., on an SLO breach). A reporter that cannot reach the coordinator,
+ * or has no intervals to report (interval_ms = 0), stays inert and never stops the run.
+ */
+class MetricsReporter implements Closeable, Runnable {
+
+  private Socket socket;
+  private DataOutputStream out;
+  private DataInputStream in;
+  private final long epochNs;
+  private final long intervalNs;
+  private final double objectSize;
+  private final LongAdder errors = new LongAdder();
+  private final Thread thread;
+  private final LatencyHistogram snapshot = new LatencyHistogram();
+  private String phase;
+  private boolean[] moveData;
+  private LatencyRecorder.Intervals[] intervals;
+  private int nextIdx;
+  private volatile boolean closed;
+  private volatile String stopReason;
+
+  /**
+   * The bytes moved in an interval are estimated from objectSize, the mean object size.
+   */
+  MetricsReporter(String host, int port, String id, long epochNs, long intervalNs,
+      double objectSize, Logger log) {
+    this.epochNs = epochNs;
+    this.intervalNs = intervalNs;
+    this.objectSize = objectSize;
+    if (intervalNs <= 0) {
+      log.info("Live metrics disabled: interval_ms = 0");
+      this.thread = null;
+      return;
+    }
+    try {
+      this.socket = new Socket(host, port);
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      this.in = new DataInputStream(socket.getInputStream());
+      send(MetricsProtocol.HELLO, id.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      log.warn("Live metrics disabled: " + e.getMessage());
+      this.socket = null;
+      this.thread = null;
+      return;
+    }
+    this.thread = new Thread(this, "metrics-reporter");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Starts reporting the intervals of a phase, summed over the series of its operation types;
+   * moveData[i] tells if the operations in intervals[i] transfer an object each.
+   */
+  synchronized void beginPhase(String name, LatencyRecorder.Intervals[] intervals,
+      boolean[] moveData) {
+    if (thread == null) {
+      return;
+    }
+    this.phase = name;
+    this.moveData = moveData;
+    this.intervals = intervals;
+    this.nextIdx = currentIdx();
+    // A function that connected after the run was stopped is told so on connecting; catch that
+    // before the phase runs rather than an interval into it
+    try {
+      pollStop();
+    } catch (IOException e) {
+      // Checked again by the reporter thread
+    }
+  }
+
+  /**
+   * Reports the intervals of the phase not reported yet, including the last, partial one.
+   */
+  synchronized void endPhase() {
+    if (intervals != null) {
+      int lastIdx = currentIdx();
+      while (nextIdx <= lastIdx) {
+        report(nextIdx++);
+      }
+    }
+    intervals = null;
+  }
+
+  void error() {
+    errors.increment();
+  }
+
+  boolean stopRequested() {
+    return stopReason != null;
+  }
+
+  String getStopReason() {
+    return stopReason;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!closed) {
+        // Report each interval a tenth of an interval after its end, by when the operations that
+        // completed in it have been recorded
+        long reportNs = epochNs + (currentIdx() + 1) * intervalNs + intervalNs / 10;
+        long waitNs = reportNs - System.nanoTime();
+        if (waitNs > 0) {
+          Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+        }
+        synchronized (this) {
+          pollStop();
+          while (intervals != null && nextIdx < currentIdx()) {
+            report(nextIdx++);
+          }
+        }
+      }
+    } catch (InterruptedException | IOException e) {
+      // Closed
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    if (thread == null) {
+      return;
+    }
+    thread.interrupt();
+    try {
+      send(MetricsProtocol.CLOSE, new byte[0]);
+      socket.close();
+    } catch (IOException e) {
+      // The coordinator is gone; nothing left to report to
+    }
+  }
+
+  private int currentIdx() {
+    return (int) ((System.nanoTime() - epochNs) / intervalNs);
+  }
+
+  private void report(int idx) {
+    snapshot.reset();
+    long bytes = 0;
+    for (int i = 0; i < intervals.length; i++) {
+      long before = snapshot.getTotalCount();
+      intervals[i].addTo(idx, snapshot);
+      if (moveData[i]) {
+        bytes += (long) ((snapshot.getTotalCount() - before) * objectSize);
+      }
+    }
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    try (DataOutputStream data = new DataOutputStream(payload)) {
+      data.writeInt(idx);
+      data.writeUTF(phase);
+      data.writeLong(snapshot.getTotalCount());
+      data.writeLong(errors.sumThenReset());
+      data.writeLong(bytes);
+      data.writeLong(snapshot.getValueAtPercentile(50.0));
+      data.writeLong(snapshot.getValueAtPercentile(99.0));
+      data.writeLong(snapshot.getMax());
+      data.flush();
+      send(MetricsProtocol.SNAPSHOT, payload.toByteArray());
+    } catch (IOException e) {
+      // Live metrics are best-effort
+    }
+  }
+
+  private synchronized void pollStop() throws IOException {
+    while (in.available() >= MetricsProtocol.HEADER_SIZE) {
+      byte type = in.readByte();
+      byte[] payload = new byte[in.readInt()];
+      in.readFully(payload);
+      if (type == MetricsProtocol.STOP) {
+        stopReason = new String(payload, StandardCharsets.UTF_8);
+      }
+    }
+  }
+
+  private synchronized void send(byte type, byte[] payload) throws IOException {
+    out.writeByte(type);
+    out.writeInt(payload.length);
+    out.write(payload);
+    out.flush();
+  }
+}
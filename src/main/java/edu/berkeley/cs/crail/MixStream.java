@@ -0,0 +1,106 @@
+package edu.berkeley.cs.crail;
+
+import edu.berkeley.cs.backend.SizeDistribution;
+import edu.berkeley.cs.keygen.KeyGenerator;
+import java.util.SplittableRandom;
+
+/**
+ * One worker's share of a mixed workload: n operations, each of a type drawn independently with
+ * the given ratios (indexed like the operation types, and summing to 1), on keys drawn from the
+ * worker's key generator, with objects of the sizes that sizes gives those keys. Writes take
+ * their keys from {@link KeyGenerator#nextWriteKey()}, so that generators which insert new keys
+ * see them complete. Keys are not tracked across types, so a read, lookup or delete may draw a
+ * key that was deleted earlier in the mix (or never written); it then finds no object, which
+ * counts as a miss of that type rather than an error.
+ *
+ * Operations are issued as soon as a slot is free unless opsPerSec is positive, in which case
+ * they follow an arrival schedule at that rate, as in an open-loop phase.
+ */
+class MixStream implements OpStream {
+
+  private final double[] cumulative;
+  private final int writeOp;
+  private final KeyGenerator keyGen;
+  private final SizeDistribution sizes;
+  private final SplittableRandom random;
+  private final ArrivalSchedule schedule;
+  private int remaining;
+  private int op;
+  private long key;
+  private int size;
+  private long offsetNs = -1;
+
+  MixStream(double[] ratios, int writeOp, KeyGenerator keyGen, SizeDistribution sizes,
+      SplittableRandom random, int n, double opsPerSec, boolean poisson) {
+    this.cumulative = new double[ratios.length];
+    double sum = 0.0;
+    for (int i = 0; i < ratios.length; i++) {
+      sum += ratios[i];
+      cumulative[i] = sum;
+    }
+    this.writeOp = writeOp;
+    this.keyGen = keyGen;
+    this.sizes = sizes;
+    this.random = random;
+    this.schedule = opsPerSec > 0 ? new ArrivalSchedule(opsPerSec, poisson, 0) : null;
+    this.remaining = n;
+  }
+
+  @Override
+  public boolean next() {
+    if (remaining == 0) {
+      return false;
+    }
+    remaining--;
+    op = pick(random.nextDouble());
+    key = op == writeOp ? keyGen.nextWriteKey() : keyGen.nextKey();
+    size = sizes.sizeOf(key);
+    if (schedule != null) {
+      offsetNs = schedule.advance();
+    }
+    return true;
+  }
+
+  @Override
+  public int op() {
+    return op;
+  }
+
+  @Override
+  public long key() {
+    return key;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public long offsetNs() {
+    return offsetNs;
+  }
+
+  @Override
+  public void done(int op, long key, boolean success) {
+    if (op == writeOp) {
+      keyGen.writeDone(key, success);
+    }
+  }
+
+  private int pick(double u) {
+    int last = 0;
+    double below = 0.0;
+    for (int i = 0; i < cumulative.length; i++) {
+      if (cumulative[i] > below) {
+        if (u < cumulative[i]) {
+          return i;
+        }
+        last = i;
+        below = cumulative[i];
+      }
+    }
+    // Rounding may leave the sum of the ratios just below 1
+    return last;
+  }
+}
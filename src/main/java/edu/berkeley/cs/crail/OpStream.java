@@ -0,0 +1,44 @@
+package edu.berkeley.cs.crail;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * One worker's sequence of operations of mixed types, for runs that interleave them (e.g., a
+ * trace replay) instead of running one phase per operation type. Operation types are indexes
+ * into the benchmark's phases.
+ */
+interface OpStream extends Closeable {
+
+  /**
+   * Moves to the next operation, and returns false once there are no more.
+   */
+  boolean next() throws IOException;
+
+  int op();
+
+  long key();
+
+  /**
+   * Returns the size in bytes of the object that a read or write moves.
+   */
+  int size();
+
+  /**
+   * Returns the intended issue time of the operation in nanoseconds after the start of the
+   * stream, or -1 to issue it as soon as a slot is free.
+   */
+  long offsetNs();
+
+  /**
+   * Called once an operation from the stream has completed, successfully or not.
+   */
+  default void done(int op, long key, boolean success) {
+    // Do nothing
+  }
+
+  @Override
+  default void close() throws IOException {
+    // Do nothing
+  }
+}
@@ -0,0 +1,277 @@
+package edu.berkeley.cs.crail;
+
+import edu.berkeley.cs.backend.SizeDistribution;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Decodes a recorded trace, one record per line:
+ *
+ * <pre>
+ * timestamp_us op key [size]
+ * </pre>
+ *
+ * with fields separated by spaces, tabs or commas; blank lines and lines starting with # are
+ * skipped. op is the name of a benchmark phase (e.g., read, write, delete); keys are numbers, or
+ * else are hashed to one. Timestamps only matter relative to the first record's. Reads and
+ * writes move the number of bytes their record gives, or else the size that the run's size
+ * setting gives their key (see {@link SizeDistribution}); as slots hold objects of up to the
+ * setting's largest size, a larger recorded size is rejected.
+ *
+ * The trace is memory-mapped in windows of WINDOW_SIZE bytes and decoded in place, so traces of
+ * any size are streamed without being read onto the heap or creating garbage per record. Records
+ * are assigned to numParts partitions by a hash of their key, so that the partitions split the
+ * trace evenly and every operation on a key is replayed, in order, by the same worker; only the
+ * records of the numLocalParts partitions from firstPart on are returned.
+ */
+class TraceReader implements Closeable {
+
+  private static final long WINDOW_SIZE = 64L << 20;
+  // Records longer than this are rejected, so a record never spans two windows
+  private static final int MAX_RECORD_SIZE = 4096;
+
+  private final String path;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final byte[][] opNames;
+  // Operations that move data, whose records may give their size
+  private final boolean[] sized;
+  private final SizeDistribution sizes;
+  private final int firstPart;
+  private final int numLocalParts;
+  private final int numParts;
+  private final double nsPerUs;
+  private MappedByteBuffer window;
+  private long windowStart;
+  private long firstUs = -1;
+  private long timeUs;
+  private int op;
+  private long key;
+  private int size;
+  private int part;
+
+  /**
+   * Reads partitions [firstPart, firstPart + numLocalParts) of numParts, with operation types as
+   * indexes into opNames. Offsets follow the trace's timestamps sped up by speed, or are -1 (as
+   * fast as possible) if speed is not positive.
+   */
+  TraceReader(String path, String[] opNames, SizeDistribution sizes, int firstPart,
+      int numLocalParts, int numParts, double speed) throws IOException {
+    this.path = path;
+    this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    this.fileSize = channel.size();
+    this.opNames = new byte[opNames.length][];
+    this.sized = new boolean[opNames.length];
+    for (int i = 0; i < opNames.length; i++) {
+      this.opNames[i] = opNames[i].getBytes(StandardCharsets.US_ASCII);
+      this.sized[i] = opNames[i].equals("read") || opNames[i].equals("write");
+    }
+    this.sizes = sizes;
+    this.firstPart = firstPart;
+    this.numLocalParts = numLocalParts;
+    this.numParts = numParts;
+    this.nsPerUs = speed > 0 ? 1000.0 / speed : 0.0;
+    map(0);
+  }
+
+  /**
+   * Moves to the next record of the local partitions, and returns false once there are no more.
+   */
+  boolean next() throws IOException {
+    while (readRecord()) {
+      if (firstUs < 0) {
+        firstUs = timeUs;
+      }
+      part = partition(key) - firstPart;
+      if (part >= 0 && part < numLocalParts) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  int op() {
+    return op;
+  }
+
+  long key() {
+    return key;
+  }
+
+  /**
+   * Returns the size in bytes of the object that a read or write moves.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the partition of the record, counted from firstPart.
+   */
+  int part() {
+    return part;
+  }
+
+  long offsetNs() {
+    return nsPerUs > 0 ? (long) ((timeUs - firstUs) * nsPerUs) : -1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+  private int partition(long key) {
+    long z = key * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 32)) * 0xD6E8FEB86659FD93L;
+    return (int) (((z ^ (z >>> 32)) >>> 1) % numParts);
+  }
+
+  private void map(long start) throws IOException {
+    windowStart = start;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+        Math.min(WINDOW_SIZE, fileSize - start));
+  }
+
+  private boolean readRecord() throws IOException {
+    while (true) {
+      if (window.remaining() < MAX_RECORD_SIZE && windowStart + window.limit() < fileSize) {
+        map(windowStart + window.position());
+      }
+      if (!window.hasRemaining()) {
+        return false;
+      }
+      byte b = window.get(window.position());
+      if (b == '#') {
+        skipLine();
+      } else if (b == '\n' || b == '\r' || isSeparator(b)) {
+        window.get();
+      } else {
+        long start = windowStart + window.position();
+        timeUs = parseNumber(start);
+        op = parseOp(start);
+        key = parseKey(start);
+        if (!sized[op]) {
+          size = 0;
+        } else if (hasField()) {
+          long recorded = parseNumber(start);
+          if (recorded > sizes.maxSize()) {
+            throw malformed(start, "size " + recorded + " is larger than the largest object size "
+                + sizes.maxSize() + " of the size setting");
+          }
+          size = (int) recorded;
+        } else {
+          size = sizes.sizeOf(key);
+        }
+        skipLine();
+        if (windowStart + window.position() - start > MAX_RECORD_SIZE) {
+          throw malformed(start, "record longer than " + MAX_RECORD_SIZE + " bytes");
+        }
+        return true;
+      }
+    }
+  }
+
+  private long parseNumber(long start) throws IOException {
+    int end = token(start);
+    long value = 0;
+    for (int i = window.position(); i < end; i++) {
+      byte b = window.get(i);
+      if (b < '0' || b > '9') {
+        throw malformed(start, "not a number");
+      }
+      value = value * 10 + (b - '0');
+    }
+    window.position(end);
+    return value;
+  }
+
+  private int parseOp(long start) throws IOException {
+    int end = token(start);
+    int begin = window.position();
+    window.position(end);
+    for (int i = 0; i < opNames.length; i++) {
+      if (opNames[i].length == end - begin && matches(begin, opNames[i])) {
+        return i;
+      }
+    }
+    throw malformed(start, "unknown operation");
+  }
+
+  /**
+   * Parses a numeric key, or hashes any other key (with 64-bit FNV-1a) to a non-negative one.
+   */
+  private long parseKey(long start) throws IOException {
+    int end = token(start);
+    int begin = window.position();
+    boolean numeric = end - begin <= 18;
+    long value = 0;
+    long hash = 0xCBF29CE484222325L;
+    for (int i = begin; i < end; i++) {
+      byte b = window.get(i);
+      numeric &= b >= '0' && b <= '9';
+      value = value * 10 + (b - '0');
+      hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+    window.position(end);
+    return numeric ? value : hash & Long.MAX_VALUE;
+  }
+
+  /**
+   * Skips separators, and returns the end of the token that follows them.
+   */
+  private int token(long start) throws IOException {
+    while (window.hasRemaining() && isSeparator(window.get(window.position()))) {
+      window.get();
+    }
+    int end = window.position();
+    while (end < window.limit() && !isSeparator(window.get(end)) && window.get(end) != '\n'
+        && window.get(end) != '\r') {
+      end++;
+    }
+    if (end == window.position()) {
+      throw malformed(start, "missing field");
+    }
+    return end;
+  }
+
+  /**
+   * Skips separators, and returns true if another field follows them on the line.
+   */
+  private boolean hasField() {
+    while (window.hasRemaining() && isSeparator(window.get(window.position()))) {
+      window.get();
+    }
+    return window.hasRemaining() && window.get(window.position()) != '\n'
+        && window.get(window.position()) != '\r';
+  }
+
+  private boolean matches(int begin, byte[] name) {
+    for (int i = 0; i < name.length; i++) {
+      if (window.get(begin + i) != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void skipLine() {
+    while (window.hasRemaining() && window.get() != '\n') {
+      // Skip
+    }
+  }
+
+  private static boolean isSeparator(byte b) {
+    return b == ' ' || b == '\t' || b == ',';
+  }
+
+  private IOException malformed(long offset, String reason) {
+    return new IOException(path + ": malformed trace record at byte " + offset + ": " + reason);
+  }
+}
@@ -0,0 +1,241 @@
+package edu.berkeley.cs.crail;
+
+import edu.berkeley.cs.backend.SizeDistribution;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays a trace on the workers of a function, each replaying its own partition of it (see
+ * {@link TraceReader}). The trace is mapped and decoded once per function: a decoder thread
+ * reads the records of all the function's partitions and hands each worker those of its own, in
+ * batches of BATCH_SIZE records through a queue of QUEUE_BATCHES batches. Batches are recycled,
+ * so the replay creates no garbage per record.
+ *
+ * The decoder runs ahead of the workers by at most the queue of each worker. Once a worker's
+ * queue is full, the decoder hands out the partial batches of the other workers before it waits,
+ * so that a worker that falls behind delays, but does not starve, the others. A worker that
+ * closes its stream early (e.g., on a stop) no longer gets records, and the decoder stops once
+ * all workers have.
+ */
+class TraceReplay {
+
+  private static final int BATCH_SIZE = 1024;
+  private static final int QUEUE_BATCHES = 16;
+  private static final long WAIT_MS = 100;
+  // Marks the end of the records of a worker
+  private static final Batch END = new Batch(0);
+
+  private final String path;
+  private final String[] opNames;
+  private final SizeDistribution sizes;
+  private final int firstPart;
+  private final int numParts;
+  private final double speed;
+  private final Lane[] lanes;
+  private final AtomicInteger numOpen;
+  private Thread decoder;
+  // Why decoding stopped early, reported to every worker once it reaches the end of its records
+  private volatile IOException error;
+
+  private static class Batch {
+
+    private final long[] offsetsNs;
+    private final int[] ops;
+    private final long[] keys;
+    private final int[] sizes;
+    private int size;
+
+    Batch(int capacity) {
+      this.offsetsNs = new long[capacity];
+      this.ops = new int[capacity];
+      this.keys = new long[capacity];
+      this.sizes = new int[capacity];
+    }
+  }
+
+  /**
+   * Replays partitions [firstPart, firstPart + numWorkers) of numParts, one per worker, with
+   * operation types as indexes into opNames and offsets as in {@link TraceReader}.
+   */
+  TraceReplay(String path, String[] opNames, SizeDistribution sizes, int firstPart,
+      int numWorkers, int numParts, double speed) {
+    this.path = path;
+    this.opNames = opNames;
+    this.sizes = sizes;
+    this.firstPart = firstPart;
+    this.numParts = numParts;
+    this.speed = speed;
+    this.lanes = new Lane[numWorkers];
+    for (int t = 0; t < numWorkers; t++) {
+      lanes[t] = new Lane();
+    }
+    this.numOpen = new AtomicInteger(numWorkers);
+  }
+
+  /**
+   * Returns the stream of the worker's records, starting the decoder on the first call.
+   */
+  synchronized OpStream open(int worker) throws IOException {
+    if (decoder == null) {
+      TraceReader reader = new TraceReader(path, opNames, sizes, firstPart, lanes.length,
+          numParts, speed);
+      decoder = new Thread(() -> decode(reader), "trace-decoder");
+      decoder.setDaemon(true);
+      decoder.start();
+    }
+    return lanes[worker];
+  }
+
+  private void decode(TraceReader reader) {
+    Batch[] filling = new Batch[lanes.length];
+    try (TraceReader r = reader) {
+      while (numOpen.get() > 0 && r.next()) {
+        int t = r.part();
+        Lane lane = lanes[t];
+        if (lane.closed) {
+          continue;
+        }
+        Batch batch = filling[t];
+        if (batch == null) {
+          batch = lane.free.poll();
+          while (batch == null && !lane.closed) {
+            flushPartial(filling);
+            batch = lane.free.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+          }
+          if (batch == null) {
+            continue;
+          }
+          batch.size = 0;
+          filling[t] = batch;
+        }
+        batch.offsetsNs[batch.size] = r.offsetNs();
+        batch.ops[batch.size] = r.op();
+        batch.keys[batch.size] = r.key();
+        batch.sizes[batch.size] = r.size();
+        if (++batch.size == BATCH_SIZE) {
+          deliver(t, batch, filling);
+          filling[t] = null;
+        }
+      }
+    } catch (IOException e) {
+      error = e;
+    } catch (RuntimeException e) {
+      error = new IOException("Failed to decode " + path, e);
+    } catch (InterruptedException e) {
+      error = new InterruptedIOException("Trace decoding interrupted");
+    } finally {
+      try {
+        for (int t = 0; t < lanes.length; t++) {
+          if (filling[t] != null) {
+            deliver(t, filling[t], filling);
+            filling[t] = null;
+          }
+          deliver(t, END, filling);
+        }
+      } catch (InterruptedException e) {
+        // Workers still waiting are closed by the run's timeout
+      }
+    }
+  }
+
+  /**
+   * Queues batch for worker t, waiting while its queue is full unless it is closed.
+   */
+  private void deliver(int t, Batch batch, Batch[] filling) throws InterruptedException {
+    Lane lane = lanes[t];
+    if (lane.full.offer(batch)) {
+      return;
+    }
+    flushPartial(filling);
+    while (!lane.closed && !lane.full.offer(batch, WAIT_MS, TimeUnit.MILLISECONDS)) {
+      // Keep waiting
+    }
+  }
+
+  /**
+   * Queues the partial batches of the workers whose queues have room, without waiting.
+   */
+  private void flushPartial(Batch[] filling) {
+    for (int t = 0; t < lanes.length; t++) {
+      if (filling[t] != null && filling[t].size > 0 && lanes[t].full.offer(filling[t])) {
+        filling[t] = null;
+      }
+    }
+  }
+
+  /**
+   * The stream of one worker's records.
+   */
+  private class Lane implements OpStream {
+
+    private final BlockingQueue<Batch> full = new ArrayBlockingQueue<>(QUEUE_BATCHES + 1);
+    private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private volatile boolean closed;
+    private Batch current;
+    private int idx;
+
+    Lane() {
+      for (int i = 0; i < QUEUE_BATCHES; i++) {
+        free.add(new Batch(BATCH_SIZE));
+      }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (current == END) {
+        return false;
+      }
+      if (current != null && ++idx < current.size) {
+        return true;
+      }
+      if (current != null) {
+        free.add(current);
+      }
+      try {
+        current = full.take();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Trace replay interrupted");
+      }
+      idx = 0;
+      if (current == END) {
+        if (error != null) {
+          throw error;
+        }
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public int op() {
+      return current.ops[idx];
+    }
+
+    @Override
+    public long key() {
+      return current.keys[idx];
+    }
+
+    @Override
+    public int size() {
+      return current.sizes[idx];
+    }
+
+    @Override
+    public long offsetNs() {
+      return current.offsetsNs[idx];
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        numOpen.decrementAndGet();
+      }
+    }
+  }
+}
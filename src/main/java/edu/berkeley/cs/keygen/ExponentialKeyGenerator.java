@@ -0,0 +1,34 @@
+package edu.berkeley.cs.keygen;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws keys from [0, n) with exponentially decaying popularity, such that percentile percent of
+ * the draws fall on the first fraction of the keys; draws beyond the key space are redrawn.
+ */
+public class ExponentialKeyGenerator extends RandomKeyGenerator {
+
+  private final long n;
+  private final double gamma;
+
+  public ExponentialKeyGenerator(long n, double percentile, double fraction,
+      SplittableRandom random) {
+    super(random);
+    if (n < 1 || percentile <= 0.0 || percentile >= 100.0 || fraction <= 0.0) {
+      throw new IllegalArgumentException("Invalid exponential parameters: n=" + n
+          + ", percentile=" + percentile + ", fraction=" + fraction);
+    }
+    this.n = n;
+    this.gamma = -Math.log(1.0 - percentile / 100.0) / (fraction * n);
+  }
+
+  @Override
+  public long nextKey() {
+    while (true) {
+      long key = (long) (-Math.log(1.0 - random.nextDouble()) / gamma);
+      if (key < n) {
+        return key;
+      }
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package edu.berkeley.cs.keygen;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws keys from [0, n) where the first hotFraction of the keys (the hot set) receive
+ * hotOpFraction of the draws; keys are uniform within the hot set and within the rest.
+ */
+public class HotspotKeyGenerator extends RandomKeyGenerator {
+
+  private final long n;
+  private final long hotKeys;
+  private final double hotOpFraction;
+
+  public HotspotKeyGenerator(long n, double hotFraction, double hotOpFraction,
+      SplittableRandom random) {
+    super(random);
+    if (n < 1 || hotFraction < 0.0 || hotFraction > 1.0 || hotOpFraction < 0.0
+        || hotOpFraction > 1.0) {
+      throw new IllegalArgumentException("Invalid hotspot parameters: n=" + n + ", hotFraction="
+          + hotFraction + ", hotOpFraction=" + hotOpFraction);
+    }
+    this.n = n;
+    this.hotKeys = (long) (n * hotFraction);
+    this.hotOpFraction = hotOpFraction;
+  }
+
+  @Override
+  public long nextKey() {
+    boolean hot = hotKeys == n || (hotKeys > 0 && random.nextDouble() < hotOpFraction);
+    return hot ? random.nextLong(hotKeys) : hotKeys + random.nextLong(n - hotKeys);
+  }
+}
@@ -1,6 +1,25 @@
 package edu.berkeley.cs.keygen;
 
+/**
+ * A stream of keys for one client thread. Keys are non-negative numbers, which backends encode
+ * into their own namespace, so drawing a key allocates nothing.
+ */
 public interface KeyGenerator {
-  String next();
+  long nextKey();
+
   void reset();
+
+  /**
+   * Returns the key for the next write; generators that model inserts return a new key here.
+   */
+  default long nextWriteKey() {
+    return nextKey();
+  }
+
+  /**
+   * Called once the write of a key from nextWriteKey() has completed, successfully or not.
+   */
+  default void writeDone(long key, boolean success) {
+    // Do nothing
+  }
 }
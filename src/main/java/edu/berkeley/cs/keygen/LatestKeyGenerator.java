@@ -0,0 +1,115 @@
+package edu.berkeley.cs.keygen;
+
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Models a workload that favours recently written keys. Writes insert new keys, in sequence, and
+ * reads draw from the keys written so far with Zipfian popularity by recency: the most recently
+ * written key is the most popular.
+ *
+ * The generators of all client threads share one {@link Inserts}, so a read never targets a key
+ * whose write (by any thread) is still in flight or has failed.
+ */
+public class LatestKeyGenerator extends RandomKeyGenerator {
+
+  private final Inserts inserts;
+  private final ZipfSampler sampler;
+
+  /**
+   * Tracks inserted keys: keys are handed out in sequence, and limit() is the end of the prefix
+   * of them whose writes have succeeded. A key whose write failed is handed out again by the next
+   * call to next(), ahead of new keys, so the prefix only grows once a retry succeeds.
+   */
+  public static class Inserts {
+
+    // Most keys handed out but not yet done
+    private static final int WINDOW = 1 << 16;
+
+    private final AtomicLong next;
+    private final boolean[] done = new boolean[WINDOW];
+    private final ArrayDeque<Long> failed = new ArrayDeque<>();
+    private volatile int numFailed;
+    private volatile long limit;
+
+    /**
+     * Keys [0, numKeys) are taken to exist already (e.g., loaded).
+     */
+    public Inserts(long numKeys) {
+      this.next = new AtomicLong(numKeys);
+      this.limit = numKeys;
+    }
+
+    long next() {
+      if (numFailed > 0) {
+        synchronized (this) {
+          if (!failed.isEmpty()) {
+            numFailed--;
+            return failed.pollFirst();
+          }
+        }
+      }
+      // A key is only claimed once it fits in the window, so a refused insert strands no key
+      while (true) {
+        long key = next.get();
+        if (key - limit >= WINDOW) {
+          throw new IllegalStateException("Too many inserts in flight");
+        }
+        if (next.compareAndSet(key, key + 1)) {
+          return key;
+        }
+      }
+    }
+
+    synchronized void done(long key, boolean success) {
+      if (!success) {
+        failed.addLast(key);
+        numFailed++;
+        return;
+      }
+      done[(int) (key % WINDOW)] = true;
+      long l = limit;
+      while (done[(int) (l % WINDOW)]) {
+        done[(int) (l % WINDOW)] = false;
+        l++;
+      }
+      limit = l;
+    }
+
+    long limit() {
+      return limit;
+    }
+  }
+
+  /*
+   * Popularity by recency follows zipf:n:theta, see ZipfKeyGenerator.
+   */
+  public LatestKeyGenerator(double theta, Inserts inserts, SplittableRandom random) {
+    super(random);
+    if (theta < 0.0 || theta > 1.0) {
+      throw new IllegalArgumentException("Invalid latest parameters: theta=" + theta);
+    }
+    this.inserts = inserts;
+    this.sampler = new ZipfSampler(1.0 - theta);
+  }
+
+  @Override
+  public long nextKey() {
+    long limit = inserts.limit();
+    if (limit == 0) {
+      throw new IllegalStateException("No keys have been written yet");
+    }
+    return limit - sampler.sample(random, limit);
+  }
+
+  @Override
+  public long nextWriteKey() {
+    return inserts.next();
+  }
+
+  @Override
+  public void writeDone(long key, boolean success) {
+    inserts.done(key, success);
+  }
+}
@@ -0,0 +1,65 @@
+package edu.berkeley.cs.keygen;
+
+/**
+ * Confines a generator to one function's partition of a key space shared by numPartitions
+ * functions, so that each function only touches the keys it owns. The first span keys the
+ * generator draws map onto the partition's range [begin, begin + span) of the numKeys shared
+ * keys. Keys beyond span are folded onto the range too (key k to begin + k % span), unless the
+ * generator inserts new keys there (see {@link LatestKeyGenerator}); those map onto keys past
+ * numKeys that no other partition uses: every numPartitions-th key from numKeys + partition.
+ */
+public class PartitionKeyGenerator implements KeyGenerator {
+
+  private final KeyGenerator keyGen;
+  private final long begin;
+  private final long span;
+  private final long numKeys;
+  private final int partition;
+  private final int numPartitions;
+  private final boolean inserts;
+
+  public PartitionKeyGenerator(KeyGenerator keyGen, long begin, long span, long numKeys,
+      int partition, int numPartitions, boolean inserts) {
+    this.keyGen = keyGen;
+    this.begin = begin;
+    this.span = span;
+    this.numKeys = numKeys;
+    this.partition = partition;
+    this.numPartitions = numPartitions;
+    this.inserts = inserts;
+  }
+
+  @Override
+  public long nextKey() {
+    return toShared(keyGen.nextKey());
+  }
+
+  @Override
+  public void reset() {
+    keyGen.reset();
+  }
+
+  @Override
+  public long nextWriteKey() {
+    return toShared(keyGen.nextWriteKey());
+  }
+
+  @Override
+  public void writeDone(long key, boolean success) {
+    keyGen.writeDone(toLocal(key), success);
+  }
+
+  private long toShared(long key) {
+    if (key < span) {
+      return begin + key;
+    }
+    return inserts ? numKeys + (key - span) * numPartitions + partition : begin + key % span;
+  }
+
+  private long toLocal(long key) {
+    if (key >= begin && key < begin + span) {
+      return key - begin;
+    }
+    return span + (key - numKeys - partition) / numPartitions;
+  }
+}
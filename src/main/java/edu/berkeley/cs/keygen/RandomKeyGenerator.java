@@ -0,0 +1,24 @@
+package edu.berkeley.cs.keygen;
+
+import java.util.SplittableRandom;
+
+/**
+ * Base of the generators that draw keys at random. Each generator owns its random stream, seeded
+ * from the stream it is created with, so generators are used one per thread, and reset() restarts
+ * the stream so that every phase draws the same keys.
+ */
+abstract class RandomKeyGenerator implements KeyGenerator {
+
+  private final long seed;
+  protected SplittableRandom random;
+
+  RandomKeyGenerator(SplittableRandom random) {
+    this.seed = random.nextLong();
+    this.random = new SplittableRandom(seed);
+  }
+
+  @Override
+  public void reset() {
+    random = new SplittableRandom(seed);
+  }
+}
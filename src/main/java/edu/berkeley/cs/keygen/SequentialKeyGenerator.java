@@ -1,19 +1,46 @@
 package edu.berkeley.cs.keygen;
 
 public class SequentialKeyGenerator implements KeyGenerator {
+  private long firstKey;
+  private long stride;
+  private long numKeys;
   private long currentKey;
 
   public SequentialKeyGenerator() {
-    currentKey = 0;
+    this(0, 1);
+  }
+
+  /**
+   * Generates firstKey, firstKey + stride, firstKey + 2 * stride, ... so that a set of generators
+   * with distinct first keys in [0, stride) partition the sequential key space between them.
+   */
+  public SequentialKeyGenerator(long firstKey, long stride) {
+    this(firstKey, stride, Long.MAX_VALUE);
+  }
+
+  /**
+   * Generates the same keys, but starts over from firstKey instead of reaching numKeys, so that
+   * the keys stay within [0, numKeys).
+   */
+  public SequentialKeyGenerator(long firstKey, long stride, long numKeys) {
+    this.firstKey = firstKey;
+    this.stride = stride;
+    this.numKeys = numKeys;
+    this.currentKey = firstKey;
   }
 
   @Override
-  public String next() {
-    return String.valueOf(currentKey++);
+  public long nextKey() {
+    long key = currentKey;
+    currentKey += stride;
+    if (currentKey >= numKeys) {
+      currentKey = firstKey;
+    }
+    return key;
   }
 
   @Override
   public void reset() {
-    currentKey = 0;
+    currentKey = firstKey;
   }
 }
@@ -0,0 +1,24 @@
+package edu.berkeley.cs.keygen;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws keys uniformly from [0, n).
+ */
+public class UniformKeyGenerator extends RandomKeyGenerator {
+
+  private final long n;
+
+  public UniformKeyGenerator(long n, SplittableRandom random) {
+    super(random);
+    if (n < 1) {
+      throw new IllegalArgumentException("Invalid uniform parameters: n=" + n);
+    }
+    this.n = n;
+  }
+
+  @Override
+  public long nextKey() {
+    return random.nextLong(n);
+  }
+}
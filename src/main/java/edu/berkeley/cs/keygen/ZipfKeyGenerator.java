@@ -1,54 +1,61 @@
 package edu.berkeley.cs.keygen;
 
-import static java.lang.Math.pow;
-
-public class ZipfKeyGenerator implements KeyGenerator {
-
-  private int n;
-  private double[] zDistribution;
-
-  public ZipfKeyGenerator(double theta, int n) {
-    this.n = n;
-    this.zDistribution = new double[this.n];
-
-    /*
-     * Zipfian - p(i) = c / i ^^ (1 - theta)
-     * At theta = 1, uniform
-     * At theta = 0, pure zipfian
-     */
-
-    double sum = 0.0;
-    double exponent = 1.0 - theta;
-    for (int i = 1; i <= this.n; i++) {
-      sum += 1.0 / pow((double) i, exponent);
-    }
-
-    double c = 1.0 / sum;
-    double sumCumulative = 0.0;
-    for (int i = 0; i < this.n; i++) {
-      sumCumulative += c / pow((double) (i + 1), exponent);
-      this.zDistribution[i] = sumCumulative;
+import java.util.SplittableRandom;
+
+/**
+ * Draws keys in [0, n) with Zipfian popularity, key 0 being the most popular unless scrambled.
+ */
+public class ZipfKeyGenerator extends RandomKeyGenerator {
+
+  private final int n;
+  private final boolean scramble;
+  private final long multiplier;
+  private final ZipfSampler sampler;
+
+  /*
+   * Zipfian - p(i) = c / i ^^ (1 - theta)
+   * At theta = 1, uniform
+   * At theta = 0, pure zipfian
+   *
+   * If scramble is set, popular keys are spread over the key space instead of being the lowest
+   * ones.
+   */
+  public ZipfKeyGenerator(double theta, int n, boolean scramble, SplittableRandom random) {
+    super(random);
+    if (n < 1 || theta < 0.0 || theta > 1.0) {
+      throw new IllegalArgumentException("Invalid zipf parameters: n=" + n + ", theta=" + theta);
     }
+    this.n = n;
+    this.scramble = scramble;
+    this.multiplier = coprimeMultiplier(n);
+    this.sampler = new ZipfSampler(1.0 - theta);
   }
 
   @Override
-  public String next() {
-    double r = Math.random();
-    int lo = 0;
-    int hi = this.n;
-    while (lo != hi) {
-      int mid = (lo + hi) / 2;
-      if (this.zDistribution[mid] <= r) {
-        lo = mid + 1;
-      } else {
-        hi = mid;
-      }
+  public long nextKey() {
+    long rank = sampler.sample(random, n) - 1;
+    // A bijection of [0, n), as the multiplier is coprime with n
+    return scramble ? rank * multiplier % n : rank;
+  }
+
+  /**
+   * Returns a multiplier near n times the golden ratio conjugate that is coprime with n, so
+   * that consecutive ranks map to keys far apart.
+   */
+  private static long coprimeMultiplier(long n) {
+    long m = Math.max((long) (n * 0.6180339887498949), 1);
+    while (gcd(m, n) != 1) {
+      m++;
     }
-    return String.valueOf(lo);
+    return m;
   }
 
-  @Override
-  public void reset() {
-    // Do nothing
+  private static long gcd(long a, long b) {
+    while (b != 0) {
+      long t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
   }
 }
@@ -0,0 +1,69 @@
+package edu.berkeley.cs.keygen;
+
+import java.util.SplittableRandom;
+
+/**
+ * Samples ranks in [1, n] with p(i) proportional to i ^^ -exponent, by rejection-inversion (W.
+ * Hormann and G. Derflinger, "Rejection-inversion to generate variates from monotone discrete
+ * distributions", 1996). It needs constant memory and setup time, on average little more than
+ * one uniform variate per rank, and n may change between samples at the cost of one logarithm.
+ */
+final class ZipfSampler {
+
+  private final double exponent;
+  private final double hIntegralX1;
+  private final double s;
+  private long n;
+  private double hIntegralN;
+
+  ZipfSampler(double exponent) {
+    this.exponent = exponent;
+    this.hIntegralX1 = hIntegral(1.5) - 1.0;
+    this.s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2.0));
+  }
+
+  long sample(SplittableRandom random, long n) {
+    if (n != this.n) {
+      this.n = n;
+      this.hIntegralN = hIntegral(n + 0.5);
+    }
+    while (true) {
+      double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+      double x = hIntegralInverse(u);
+      long k = Math.min(Math.max((long) (x + 0.5), 1), n);
+      if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+        return k;
+      }
+    }
+  }
+
+  private double h(double x) {
+    return Math.exp(-exponent * Math.log(x));
+  }
+
+  private double hIntegral(double x) {
+    double logX = Math.log(x);
+    return helper2((1.0 - exponent) * logX) * logX;
+  }
+
+  private double hIntegralInverse(double x) {
+    double t = Math.max(x * (1.0 - exponent), -1.0);
+    return Math.exp(helper1(t) * x);
+  }
+
+  // log(1 + x) / x, accurate near 0
+  private static double helper1(double x) {
+    if (Math.abs(x) > 1e-8) {
+      return Math.log1p(x) / x;
+    }
+    return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+  }
+
+  // (exp(x) - 1) / x, accurate near 0
+  private static double helper2(double x) {
+    if (Math.abs(x) > 1e-8) {
+      return Math.expm1(x) / x;
+    }
+    return 1.0 + x * 0.5 * (1.0 + x / 3.0 * (1.0 + 0.25 * x));
+  }
+}
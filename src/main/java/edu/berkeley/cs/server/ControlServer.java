@@ -9,13 +9,21 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ControlServer implements Runnable {
 
   private static final String ABORT = "ABORT\n";
+  private static final int PING_ROUNDS = 8;
+  private static final long PING_TIMEOUT_MS = 5000;
+  // Lead time between announcing the start instant and reaching it
+  private static final long START_DELAY_US = 100 * 1000;
 
   private Selector selector;
   private ServerSocketChannel serverSocket;
@@ -23,9 +31,14 @@ public class ControlServer implements Runnable {
   private int numConnections;
   private Set<String> ids;
   private ArrayList<SocketChannel> ready;
+  private ArrayList<String> readyIds;
+  // Wave each started function was triggered in, by lambda_id
+  private Map<String, Integer> waves = new ConcurrentHashMap<>();
   private int numTriggers;
   private int connectionsPerTrigger;
   private int triggerPeriod;
+  // Start instant of the first wave
+  private long epochUs = -1;
 
   public ControlServer(int port, int numConnections, int numTriggers, int triggerPeriod) throws IOException {
     this.selector = Selector.open();
@@ -40,6 +53,7 @@ public class ControlServer implements Runnable {
     this.triggerPeriod = triggerPeriod;
     this.ids = new HashSet<>();
     this.ready = new ArrayList<>();
+    this.readyIds = new ArrayList<>();
   }
 
   public ControlServer(int port) throws IOException {
@@ -83,6 +97,7 @@ public class ControlServer implements Runnable {
               System.out.println("[ControlServer] Queuing " + client.getRemoteAddress() + ", ID=[" + id + "]");
               ids.add(id);
               ready.add(client);
+              readyIds.add(id);
               System.out.println("[ControlServer] Progress: " + ids.size() + "/" + numConnections);
               if (ready.size() == numConnections) {
                 run = false;
@@ -96,15 +111,13 @@ public class ControlServer implements Runnable {
 
       for (int i = 0; i < numTriggers; i++) {
         System.out.println("[ControlServer] Running " + connectionsPerTrigger + " functions...");
-        for (int j = 0; j < connectionsPerTrigger; j++) {
-          int idx = i * connectionsPerTrigger + j;
-          SocketChannel channel = ready.get(idx);
-          System.out.println("[ControlServer] Running " + channel.getRemoteAddress() + "...");
-          buffer.clear();
-          buffer.put("OK\n".getBytes());
-          buffer.flip();
-          channel.write(buffer);
+        List<SocketChannel> wave = ready.subList(i * connectionsPerTrigger,
+            (i + 1) * connectionsPerTrigger);
+        for (String id : readyIds.subList(i * connectionsPerTrigger,
+            (i + 1) * connectionsPerTrigger)) {
+          waves.put(id, i);
         }
+        start(wave);
         System.out.println("[ControlServer] End of wave " + i);
         Thread.sleep(triggerPeriod * 1000);
       }
@@ -115,4 +128,113 @@ public class ControlServer implements Runnable {
     }
   }
 
+  /**
+   * Returns the wave the function with the given lambda_id was started in, or -1 if it has not
+   * been started.
+   */
+  public int getWave(String id) {
+    return waves.getOrDefault(id, -1);
+  }
+
+  /**
+   * Estimates the clock offset of every function in the wave with PING_ROUNDS NTP-style
+   * exchanges, and then tells them all to start at the same instant a little in the future.
+   *
+   * In each round the coordinator sends "PING t1" and the function answers "PONG t1 t2 t3", where
+   * t2 and t3 are when it received the ping and sent the pong on its own clock; with t4 the time
+   * the pong arrived, the function's clock is ahead of the coordinator's by
+   * ((t2 - t1) + (t3 - t4)) / 2, with an error of at most half the round trip time
+   * (t4 - t1) - (t3 - t2). The estimate from the round with the shortest round trip is kept. Each
+   * function then gets "START start offset epoch": the start instant, its offset, and the start
+   * instant of the first wave, which serves as time zero for the results of all functions. All
+   * times are in microseconds on the coordinator's clock, except t2 and t3.
+   */
+  private void start(List<SocketChannel> wave) throws IOException {
+    long[] offsetUs = new long[wave.size()];
+    long[] rttUs = new long[wave.size()];
+    Arrays.fill(rttUs, Long.MAX_VALUE);
+    // Pongs received only in part so far
+    StringBuilder[] partial = new StringBuilder[wave.size()];
+    long maxRttUs = 0;
+    try (Selector pongs = Selector.open()) {
+      for (int j = 0; j < wave.size(); j++) {
+        wave.get(j).register(pongs, SelectionKey.OP_READ, j);
+        partial[j] = new StringBuilder();
+      }
+      for (int r = 0; r < PING_ROUNDS; r++) {
+        for (SocketChannel channel : wave) {
+          send(channel, "PING " + nowUs());
+        }
+        int pending = wave.size();
+        long deadlineMs = System.currentTimeMillis() + PING_TIMEOUT_MS;
+        while (pending > 0 && System.currentTimeMillis() < deadlineMs) {
+          pongs.select(PING_TIMEOUT_MS);
+          Iterator<SelectionKey> iter = pongs.selectedKeys().iterator();
+          while (iter.hasNext()) {
+            SelectionKey key = iter.next();
+            iter.remove();
+            long t4 = nowUs();
+            int j = (Integer) key.attachment();
+            buffer.clear();
+            if (((SocketChannel) key.channel()).read(buffer) <= 0) {
+              continue;
+            }
+            buffer.flip();
+            partial[j].append(StandardCharsets.UTF_8.decode(buffer));
+            int eol;
+            while ((eol = partial[j].indexOf("\n")) >= 0) {
+              String[] parts = partial[j].substring(0, eol).trim().split(" ");
+              partial[j].delete(0, eol + 1);
+              if (parts.length != 4 || !parts[0].equals("PONG")) {
+                continue;
+              }
+              long t1 = Long.parseLong(parts[1]);
+              long t2 = Long.parseLong(parts[2]);
+              long t3 = Long.parseLong(parts[3]);
+              long rtt = (t4 - t1) - (t3 - t2);
+              if (rtt < rttUs[j]) {
+                rttUs[j] = rtt;
+                offsetUs[j] = ((t2 - t1) + (t3 - t4)) / 2;
+              }
+              --pending;
+            }
+          }
+        }
+      }
+      for (SelectionKey key : pongs.keys()) {
+        key.cancel();
+      }
+    }
+
+    for (long rtt : rttUs) {
+      if (rtt != Long.MAX_VALUE) {
+        maxRttUs = Math.max(maxRttUs, rtt);
+      }
+    }
+    long startUs = nowUs() + START_DELAY_US + 2 * maxRttUs;
+    if (epochUs < 0) {
+      epochUs = startUs;
+    }
+    for (int j = 0; j < wave.size(); j++) {
+      SocketChannel channel = wave.get(j);
+      String rtt = rttUs[j] == Long.MAX_VALUE ? "unknown" : rttUs[j] + "us";
+      System.out.println("[ControlServer] Running " + channel.getRemoteAddress() + ", offset="
+          + offsetUs[j] + "us, rtt=" + rtt + "...");
+      send(channel, "START " + startUs + " " + offsetUs[j] + " " + epochUs);
+    }
+  }
+
+  private void send(SocketChannel channel, String msg) throws IOException {
+    buffer.clear();
+    buffer.put((msg + "\n").getBytes(StandardCharsets.UTF_8));
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static long nowUs() {
+    return System.nanoTime() / 1000;
+  }
+
 }
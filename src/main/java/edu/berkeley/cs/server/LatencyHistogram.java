@@ -0,0 +1,172 @@
+package edu.berkeley.cs.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A fixed-size log-linear histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ * Values below 2^SUB_BUCKET_BITS are counted exactly; larger values fall into one of
+ * 2^(SUB_BUCKET_BITS - 1) linear sub-buckets per power of two, which bounds the relative error of
+ * any reported value by 2^-(SUB_BUCKET_BITS - 1), i.e., under 1%. Recording is a few shifts and an
+ * array increment, with no allocation. Not thread-safe: each worker records into its own instance,
+ * and instances are merged with {@link #add} once the workers are done.
+ *
+ * The distribution written by {@link #writeDistribution} names each bucket by a value inside it,
+ * so reading it back with {@link #readDistribution} restores the bucket counts exactly (though
+ * not the exact mean); this is how the coordinator merges the histograms of many functions.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 8;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+  // Values are clamped to about 18 minutes, far beyond any phase timeout
+  private static final int MAX_VALUE_BITS = 40;
+  private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+  private static final int BUCKET_COUNT =
+      SUB_BUCKET_COUNT + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+  private final long[] counts = new long[BUCKET_COUNT];
+  private long totalCount;
+  private long sum;
+  private long min = Long.MAX_VALUE;
+  private long max;
+
+  public void record(long valueNs) {
+    long v = valueNs < 0 ? 0 : Math.min(valueNs, MAX_VALUE);
+    counts[index(v)]++;
+    totalCount++;
+    sum += v;
+    if (v < min) {
+      min = v;
+    }
+    if (v > max) {
+      max = v;
+    }
+  }
+
+  /**
+   * Records count occurrences of valueNs.
+   */
+  public void record(long valueNs, long count) {
+    long v = valueNs < 0 ? 0 : Math.min(valueNs, MAX_VALUE);
+    counts[index(v)] += count;
+    totalCount += count;
+    sum += v * count;
+    min = Math.min(min, v);
+    max = Math.max(max, v);
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public long getMin() {
+    return totalCount == 0 ? 0 : min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return totalCount == 0 ? 0.0 : (double) sum / totalCount;
+  }
+
+  /**
+   * Returns the smallest recorded value (up to bucket resolution) that at least percentile
+   * percent of the recorded values do not exceed.
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(highestEquivalent(i), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Writes the cumulative distribution, one line per non-empty bucket: the bucket's upper bound in
+   * microseconds, the percentile of values at or below it, and the cumulative count.
+   */
+  public void writeDistribution(Writer out) throws IOException {
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      if (counts[i] == 0) {
+        continue;
+      }
+      seen += counts[i];
+      out.append(toUs(Math.min(highestEquivalent(i), max))).append("\t")
+          .append(String.format(Locale.ROOT, "%.6f", 100.0 * seen / totalCount)).append("\t")
+          .append(String.valueOf(seen)).append("\n");
+    }
+  }
+
+  /**
+   * Adds the counts of a distribution in the format written by {@link #writeDistribution}.
+   */
+  public void readDistribution(BufferedReader in) throws IOException {
+    long seen = 0;
+    String line;
+    while ((line = in.readLine()) != null) {
+      String[] fields = line.split("\t");
+      if (fields.length != 3) {
+        continue;
+      }
+      long cumulative = Long.parseLong(fields[2]);
+      record(Math.round(Double.parseDouble(fields[0]) * 1000.0), cumulative - seen);
+      seen = cumulative;
+    }
+  }
+
+  public static String toUs(long valueNs) {
+    return String.format(Locale.ROOT, "%.3f", valueNs / 1000.0);
+  }
+
+  private static int index(long v) {
+    if (v < SUB_BUCKET_COUNT) {
+      return (int) v;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS + 1;
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF
+        + (int) ((v >>> shift) - SUB_BUCKET_HALF);
+  }
+
+  private static long highestEquivalent(int idx) {
+    if (idx < SUB_BUCKET_COUNT) {
+      return idx;
+    }
+    int k = idx - SUB_BUCKET_COUNT;
+    int shift = k / SUB_BUCKET_HALF + 1;
+    long lowest = (long) (k % SUB_BUCKET_HALF + SUB_BUCKET_HALF) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,233 @@
+package edu.berkeley.cs.server;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A raw per-operation latency log, one (end time, latency) record per operation, both in
+ * microseconds.
+ *
+ * The text format is the original one: one tab-separated record per line. The binary format is a
+ * sequence of self-contained blocks, each holding up to BLOCK_SIZE bytes of records encoded as a
+ * zig-zag varint of the end time's delta from the previous record in the block (the first record
+ * is relative to 0) followed by a varint of the latency, and optionally deflated. Because blocks
+ * do not depend on each other, binary logs can be concatenated (e.g., per-worker logs) and remain
+ * valid. {@link #toText} converts a binary log back to the text format.
+ */
+public abstract class LatencyLog implements Closeable {
+
+  public static final String TEXT = "text";
+  public static final String BINARY = "binary";
+  public static final String DEFLATE = "deflate";
+
+  private static final byte RAW_BLOCK = 'R';
+  private static final byte DEFLATED_BLOCK = 'D';
+  private static final int BLOCK_SIZE = 64 * 1024;
+  // Longest encoding of one record: two 64-bit varints
+  private static final int MAX_RECORD_SIZE = 20;
+
+  public abstract void append(long endUs, long latencyUs) throws IOException;
+
+  /**
+   * Opens a log at path in the given format: TEXT, BINARY or DEFLATE (binary, with deflated
+   * blocks).
+   */
+  public static LatencyLog open(String path, String format) throws IOException {
+    if (format.equalsIgnoreCase(TEXT)) {
+      return new TextLog(path);
+    } else if (format.equalsIgnoreCase(BINARY)) {
+      return new BinaryLog(path, false);
+    } else if (format.equalsIgnoreCase(DEFLATE)) {
+      return new BinaryLog(path, true);
+    }
+    throw new IllegalArgumentException("Unrecognized result format: " + format);
+  }
+
+  /**
+   * Returns the file name suffix for logs in the given format.
+   */
+  public static String suffix(String format) {
+    return format.equalsIgnoreCase(TEXT) ? ".txt" : ".bin";
+  }
+
+  /**
+   * Converts the binary log at in to the text format at out.
+   */
+  public static void toText(String in, String out) throws IOException {
+    byte[] stored = new byte[BLOCK_SIZE];
+    byte[] block = new byte[BLOCK_SIZE];
+    Inflater inflater = new Inflater();
+    try (DataInputStream is = new DataInputStream(Files.newInputStream(Paths.get(in)));
+        BufferedWriter os = new BufferedWriter(new FileWriter(out))) {
+      while (true) {
+        byte codec;
+        try {
+          codec = is.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+        int count = is.readInt();
+        int rawLen = is.readInt();
+        int storedLen = is.readInt();
+        if (rawLen > BLOCK_SIZE || storedLen > BLOCK_SIZE) {
+          throw new IOException("Corrupt block in " + in + ": " + rawLen + "/" + storedLen);
+        }
+        if (codec == RAW_BLOCK) {
+          is.readFully(block, 0, rawLen);
+        } else if (codec == DEFLATED_BLOCK) {
+          is.readFully(stored, 0, storedLen);
+          inflater.reset();
+          inflater.setInput(stored, 0, storedLen);
+          try {
+            if (inflater.inflate(block, 0, rawLen) != rawLen) {
+              throw new IOException("Truncated block in " + in);
+            }
+          } catch (DataFormatException e) {
+            throw new IOException("Corrupt block in " + in, e);
+          }
+        } else {
+          throw new IOException("Not a binary latency log: " + in);
+        }
+        decodeBlock(block, count, os);
+      }
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static void decodeBlock(byte[] block, int count, Writer os) throws IOException {
+    int[] pos = {0};
+    long endUs = 0;
+    for (int i = 0; i < count; i++) {
+      long delta = readVarint(block, pos);
+      endUs += (delta >>> 1) ^ -(delta & 1);
+      long latencyUs = readVarint(block, pos);
+      os.append(String.valueOf(endUs)).append("\t").append(String.valueOf(latencyUs))
+          .append("\n");
+    }
+  }
+
+  private static long readVarint(byte[] buf, int[] pos) {
+    long v = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buf[pos[0]++];
+      v |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return v;
+      }
+    }
+  }
+
+  private static class TextLog extends LatencyLog {
+
+    private BufferedWriter out;
+
+    TextLog(String path) throws IOException {
+      this.out = new BufferedWriter(new FileWriter(path));
+    }
+
+    @Override
+    public void append(long endUs, long latencyUs) throws IOException {
+      out.append(String.valueOf(endUs)).append("\t").append(String.valueOf(latencyUs))
+          .append("\n");
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  private static class BinaryLog extends LatencyLog {
+
+    private DataOutputStream out;
+    private Deflater deflater;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private byte[] stored;
+    private int length;
+    private int count;
+    private long lastEndUs;
+
+    BinaryLog(String path, boolean compress) throws IOException {
+      this.out = new DataOutputStream(Files.newOutputStream(Paths.get(path)));
+      if (compress) {
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.stored = new byte[BLOCK_SIZE];
+      }
+    }
+
+    @Override
+    public void append(long endUs, long latencyUs) throws IOException {
+      if (length > BLOCK_SIZE - MAX_RECORD_SIZE) {
+        flushBlock();
+      }
+      long delta = endUs - lastEndUs;
+      writeVarint((delta << 1) ^ (delta >> 63));
+      writeVarint(latencyUs);
+      lastEndUs = endUs;
+      count++;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flushBlock();
+      out.close();
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+
+    private void writeVarint(long v) {
+      while ((v & ~0x7FL) != 0) {
+        block[length++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      block[length++] = (byte) v;
+    }
+
+    private void flushBlock() throws IOException {
+      if (count == 0) {
+        return;
+      }
+      int storedLen = 0;
+      if (deflater != null) {
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        storedLen = deflater.deflate(stored);
+        if (!deflater.finished()) {
+          // Incompressible; the block is stored as is
+          storedLen = 0;
+        }
+      }
+      if (storedLen > 0 && storedLen < length) {
+        writeBlockHeader(DEFLATED_BLOCK, storedLen);
+        out.write(stored, 0, storedLen);
+      } else {
+        writeBlockHeader(RAW_BLOCK, length);
+        out.write(block, 0, length);
+      }
+      length = 0;
+      count = 0;
+      lastEndUs = 0;
+    }
+
+    private void writeBlockHeader(byte codec, int storedLen) throws IOException {
+      out.writeByte(codec);
+      out.writeInt(count);
+      out.writeInt(length);
+      out.writeInt(storedLen);
+    }
+  }
+}
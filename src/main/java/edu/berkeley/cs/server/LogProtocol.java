@@ -0,0 +1,23 @@
+package edu.berkeley.cs.server;
+
+/**
+ * Framing of log messages sent from functions to the LogServer, with the same frame layout as
+ * {@link ResultProtocol}: a one-byte type and a four-byte big-endian payload length followed by
+ * the payload. A function first sends a HELLO frame carrying its lambda_id, then one MESSAGE frame
+ * per log message ("LEVEL text" in UTF-8, possibly spanning several lines, and truncated to
+ * MAX_MESSAGE_SIZE bytes), and finally CLOSE once it has finished or ABORT if it was rejected by
+ * the ControlServer.
+ */
+public final class LogProtocol {
+
+  public static final byte HELLO = 1;
+  public static final byte MESSAGE = 2;
+  public static final byte CLOSE = 3;
+  public static final byte ABORT = 4;
+
+  public static final int HEADER_SIZE = 5;
+  public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+
+  private LogProtocol() {
+  }
+}
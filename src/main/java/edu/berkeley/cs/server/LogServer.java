@@ -2,7 +2,6 @@ package edu.berkeley.cs.server;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -12,24 +11,49 @@ import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Set;
 
+/**
+ * Receives log messages from functions, framed as in {@link LogProtocol}, and hands them to a
+ * {@link LogWriter} that files them per function. Each connection reassembles its own frames, so
+ * messages split across reads arrive intact.
+ */
 public class LogServer implements Runnable {
 
-  private static final String EOM = "CLOSE";
-  private static final String ABORT = "ABORT";
+  public static final String DEFAULT_LOG_DIR = "/tmp/crail_logs";
+
+  // Accept backlog, sized for thousands of functions starting at once
+  private static final int BACKLOG = 4096;
 
   private Selector selector;
   private ServerSocketChannel serverSocket;
-  private ByteBuffer buffer;
   private int numConnections;
+  private String logDir;
 
-  public LogServer(int port, int numConnections) throws IOException {
+  private static class Connection {
+
+    private ByteBuffer header = ByteBuffer.allocate(LogProtocol.HEADER_SIZE);
+    private ByteBuffer payload;
+    private byte type;
+    private String function;
+    private String source;
+
+    Connection(String source) {
+      this.function = source;
+      this.source = source;
+    }
+  }
+
+  public LogServer(int port, int numConnections, String logDir) throws IOException {
     this.selector = Selector.open();
     this.serverSocket = ServerSocketChannel.open();
-    this.serverSocket.bind(new InetSocketAddress("0.0.0.0", port));
+    this.serverSocket.bind(new InetSocketAddress("0.0.0.0", port), BACKLOG);
     this.serverSocket.configureBlocking(false);
     this.serverSocket.register(selector, SelectionKey.OP_ACCEPT);
-    this.buffer = ByteBuffer.allocate(4096);
     this.numConnections = numConnections;
+    this.logDir = logDir;
+  }
+
+  public LogServer(int port, int numConnections) throws IOException {
+    this(port, numConnections, DEFAULT_LOG_DIR);
   }
 
   public LogServer(int port) throws IOException {
@@ -39,7 +63,8 @@ public class LogServer implements Runnable {
   @Override
   public void run() {
     try {
-      System.out.println("[LogServer] Waiting for connections");
+      System.out.println("[LogServer] Waiting for connections; logs in " + logDir);
+      LogWriter writer = new LogWriter(logDir);
       int numClosed = 0;
       while (serverSocket.isOpen()) {
         int readyChannels = selector.select();
@@ -53,40 +78,97 @@ public class LogServer implements Runnable {
           SelectionKey key = iter.next();
           if (key.isAcceptable()) {
             SocketChannel client = serverSocket.accept();
-            client.configureBlocking(false);
-            client.register(selector, SelectionKey.OP_READ);
+            if (client != null) {
+              client.configureBlocking(false);
+              client.register(selector, SelectionKey.OP_READ,
+                  new Connection(String.valueOf(client.getRemoteAddress())));
+            }
           } else if (key.isReadable()) {
             SocketChannel client = (SocketChannel) key.channel();
-            client.read(buffer);
-            buffer.flip();
-            String msgBuf = StandardCharsets.UTF_8.decode(buffer).toString().trim();
-            if (msgBuf.contains(EOM)) {
-              printMessages(client.getRemoteAddress(), msgBuf.replace(EOM, "Finished execution"));
+            Connection conn = (Connection) key.attachment();
+            byte last;
+            try {
+              last = receive(client, conn, writer);
+            } catch (IOException e) {
+              writer.close(conn.function, conn.source, "Log connection failed: " + e.getMessage());
+              last = LogProtocol.CLOSE;
+            }
+            if (last == LogProtocol.CLOSE || last == LogProtocol.ABORT) {
+              key.cancel();
               client.close();
-              numClosed++;
-              if (numClosed == numConnections) {
+              // Aborted functions are duplicates of ones that are still running
+              if (last == LogProtocol.CLOSE && ++numClosed == numConnections) {
                 serverSocket.close();
               }
-            } else if (msgBuf.contains(ABORT)) {
-              printMessages(client.getRemoteAddress(), msgBuf.replace(ABORT, "Aborted execution"));
-              client.close();
-            } else {
-              printMessages(client.getRemoteAddress(), msgBuf);
             }
-            buffer.clear();
           }
           iter.remove();
         }
       }
       selector.close();
-    } catch (IOException e) {
+      writer.shutdown();
+    } catch (IOException | InterruptedException e) {
       e.printStackTrace();
     }
   }
 
-  private void printMessages(SocketAddress address, String msgBuf) {
-    for (String msg : msgBuf.split("\\r?\\n")) {
-      System.err.println("[Function @ " + address + "] " + msg);
+  /**
+   * Consumes whatever the client has sent so far and returns the type of the last frame
+   * completed, or 0 if none was.
+   */
+  private byte receive(SocketChannel client, Connection conn, LogWriter writer)
+      throws IOException {
+    byte last = 0;
+    while (true) {
+      if (conn.header.hasRemaining()) {
+        int n = client.read(conn.header);
+        if (n < 0) {
+          throw new IOException("connection closed without CLOSE");
+        }
+        if (conn.header.hasRemaining()) {
+          return last;
+        }
+        conn.header.flip();
+        conn.type = conn.header.get();
+        int length = conn.header.getInt();
+        if (length < 0 || length > LogProtocol.MAX_MESSAGE_SIZE) {
+          throw new IOException("invalid frame length " + length);
+        }
+        if (conn.payload == null || conn.payload.capacity() < length) {
+          conn.payload = ByteBuffer.allocate(length);
+        }
+        conn.payload.clear().limit(length);
+      }
+
+      if (conn.payload.hasRemaining()) {
+        if (client.read(conn.payload) < 0) {
+          throw new IOException("connection closed mid-frame");
+        }
+        if (conn.payload.hasRemaining()) {
+          return last;
+        }
+      }
+      String text = new String(conn.payload.array(), 0, conn.payload.limit(),
+          StandardCharsets.UTF_8);
+      conn.header.clear();
+      last = conn.type;
+
+      switch (conn.type) {
+        case LogProtocol.HELLO:
+          conn.function = text;
+          break;
+        case LogProtocol.MESSAGE:
+          writer.append(conn.function, conn.source, text);
+          break;
+        case LogProtocol.CLOSE:
+          writer.close(conn.function, conn.source, "Finished execution");
+          return last;
+        case LogProtocol.ABORT:
+          writer.close(conn.function, conn.source, "Aborted execution");
+          return last;
+        default:
+          throw new IOException("invalid frame type " + conn.type);
+      }
     }
   }
 }
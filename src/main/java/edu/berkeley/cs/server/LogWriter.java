@@ -0,0 +1,260 @@
+package edu.berkeley.cs.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes log messages on a background thread, so that the LogServer's selector thread only hands
+ * them off through a bounded ring buffer (and blocks only if the writer falls a whole ring
+ * behind). Each function's messages go to &lt;dir&gt;/function_&lt;id&gt;.log. At most
+ * CONSOLE_LINES_PER_SEC lines per second are also echoed to the console; beyond that, the number
+ * of lines left out is summarized once per second.
+ *
+ * At most MAX_OPEN_FILES log files are kept open: the least recently written one is closed to make
+ * room, and appended to if its function logs again, so that thousands of functions stay within the
+ * file descriptor limit. A message that cannot be written to its file is dropped (and still
+ * echoed), and the number of dropped messages is reported with the console summary, so that a
+ * failing file never stops the writer and, with it, the selector thread that feeds it.
+ */
+class LogWriter implements Runnable {
+
+  private static final int CAPACITY = 1 << 16;
+  private static final int CONSOLE_LINES_PER_SEC = 100;
+  private static final long SUMMARY_INTERVAL_MS = 1000;
+  private static final int MAX_OPEN_FILES = 256;
+
+  private static class Entry {
+
+    private String function;
+    private String source;
+    private String text;
+    private boolean close;
+
+    Entry(String function, String source, String text, boolean close) {
+      this.function = function;
+      this.source = source;
+      this.text = text;
+      this.close = close;
+    }
+  }
+
+  private static final Entry SHUTDOWN = new Entry(null, null, null, true);
+
+  private final ArrayBlockingQueue<Entry> ring = new ArrayBlockingQueue<>(CAPACITY);
+  private final Path dir;
+  // Open files, least recently written first
+  private final LinkedHashMap<String, BufferedWriter> files = new LinkedHashMap<>(16, 0.75f, true);
+  // Functions whose log file was already created in this run, and is appended to if reopened
+  private final Set<String> created = new HashSet<>();
+  private final Thread thread;
+  private long windowStartMs;
+  private int windowLines;
+  private long suppressedLines;
+  private Set<String> suppressedFunctions = new HashSet<>();
+  private long droppedMessages;
+  private IOException lastError;
+
+  LogWriter(String dir) throws IOException {
+    this.dir = Paths.get(dir);
+    Files.createDirectories(this.dir);
+    this.thread = new Thread(this, "log-writer");
+    this.thread.start();
+  }
+
+  void append(String function, String source, String text) {
+    put(new Entry(function, source, text, false));
+  }
+
+  void close(String function, String source, String text) {
+    put(new Entry(function, source, text, true));
+  }
+
+  /**
+   * Writes out everything queued so far, closes all files and stops the writer thread.
+   */
+  void shutdown() throws InterruptedException {
+    put(SHUTDOWN);
+    thread.join();
+  }
+
+  @Override
+  public void run() {
+    ArrayList<Entry> batch = new ArrayList<>();
+    try {
+      while (true) {
+        Entry first = ring.poll(SUMMARY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          flushAll();
+          summarize(System.currentTimeMillis());
+          continue;
+        }
+        batch.add(first);
+        ring.drainTo(batch);
+        for (Entry e : batch) {
+          if (e == SHUTDOWN) {
+            flushAll();
+            for (String function : new ArrayList<>(files.keySet())) {
+              closeFile(function);
+            }
+            summarize(Long.MAX_VALUE);
+            return;
+          }
+          write(e);
+        }
+        batch.clear();
+        if (ring.isEmpty()) {
+          flushAll();
+        }
+      }
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Queues e, waiting while the ring is full unless the writer thread is gone, in which case e is
+   * dropped rather than blocking the caller for good.
+   */
+  private void put(Entry e) {
+    try {
+      while (!ring.offer(e, SUMMARY_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        if (!thread.isAlive()) {
+          System.err.println("[LogServer] Log writer stopped; dropping messages");
+          return;
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void write(Entry e) {
+    if (e.text != null) {
+      BufferedWriter w = open(e.function);
+      for (String line : e.text.split("\\r?\\n")) {
+        if (w != null) {
+          try {
+            w.append(line).append("\n");
+          } catch (IOException ex) {
+            drop(e.function, ex);
+            w = null;
+          }
+        }
+        echo(e, line);
+      }
+    }
+    if (e.close) {
+      closeFile(e.function);
+    }
+  }
+
+  /**
+   * Returns the open log file of function, opening it (and closing the least recently written
+   * file if too many are open) if needed, or null if it cannot be opened.
+   */
+  private BufferedWriter open(String function) {
+    BufferedWriter w = files.get(function);
+    if (w != null) {
+      return w;
+    }
+    if (files.size() >= MAX_OPEN_FILES) {
+      closeFile(files.keySet().iterator().next());
+    }
+    try {
+      w = Files.newBufferedWriter(dir.resolve("function_" + function + ".log"),
+          StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          created.contains(function) ? StandardOpenOption.APPEND
+              : StandardOpenOption.TRUNCATE_EXISTING);
+    } catch (IOException ex) {
+      drop(function, ex);
+      return null;
+    }
+    created.add(function);
+    files.put(function, w);
+    return w;
+  }
+
+  private void closeFile(String function) {
+    BufferedWriter w = files.remove(function);
+    if (w != null) {
+      try {
+        w.close();
+      } catch (IOException ex) {
+        drop(function, ex);
+      }
+    }
+  }
+
+  /**
+   * Counts a message that could not be written to the log file of function, whose file is closed
+   * so that the next message tries to reopen it.
+   */
+  private void drop(String function, IOException ex) {
+    ++droppedMessages;
+    lastError = ex;
+    BufferedWriter w = files.remove(function);
+    if (w != null) {
+      try {
+        w.close();
+      } catch (IOException ignored) {
+        // Already counted
+      }
+    }
+  }
+
+  private void echo(Entry e, String line) {
+    long nowMs = System.currentTimeMillis();
+    summarize(nowMs);
+    if (windowLines < CONSOLE_LINES_PER_SEC) {
+      ++windowLines;
+      System.err.println("[Function " + e.function + " @ " + e.source + "] " + line);
+    } else {
+      ++suppressedLines;
+      suppressedFunctions.add(e.function);
+    }
+  }
+
+  /**
+   * Starts a new console window once the current one is over, reporting the lines it left out.
+   */
+  private void summarize(long nowMs) {
+    if (nowMs - windowStartMs < SUMMARY_INTERVAL_MS) {
+      return;
+    }
+    if (droppedMessages > 0) {
+      System.err.println("[LogServer] Dropped " + droppedMessages
+          + " messages that could not be written to " + dir + ": " + lastError);
+      droppedMessages = 0;
+    }
+    if (suppressedLines > 0) {
+      System.err.println("[LogServer] " + suppressedLines + " more lines from "
+          + suppressedFunctions.size() + " functions; see " + dir);
+      suppressedLines = 0;
+      suppressedFunctions.clear();
+    }
+    windowStartMs = nowMs;
+    windowLines = 0;
+  }
+
+  private void flushAll() {
+    for (Map.Entry<String, BufferedWriter> file : new ArrayList<>(files.entrySet())) {
+      try {
+        file.getValue().flush();
+      } catch (IOException ex) {
+        drop(file.getKey(), ex);
+      }
+    }
+  }
+}
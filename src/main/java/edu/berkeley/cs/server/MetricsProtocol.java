@@ -0,0 +1,24 @@
+package edu.berkeley.cs.server;
+
+/**
+ * Framing of live metrics exchanged between functions and the MetricsServer, with the same frame
+ * layout as {@link ResultProtocol}. A function sends a HELLO frame carrying its lambda_id, then a
+ * SNAPSHOT frame per interval, and CLOSE when it is done. A snapshot holds, as written by a
+ * DataOutputStream: the interval's index on the shared timeline (int), the phase (UTF), and the
+ * operations completed, errors, bytes moved, and 50th and 99th percentile and maximum latency in
+ * nanoseconds of the operations completed in it (longs). The server may send a STOP frame, with
+ * the reason in UTF-8, to end the run early.
+ */
+public final class MetricsProtocol {
+
+  public static final byte HELLO = 1;
+  public static final byte SNAPSHOT = 2;
+  public static final byte CLOSE = 3;
+  public static final byte STOP = 4;
+
+  public static final int HEADER_SIZE = 5;
+  public static final int MAX_FRAME_SIZE = 4096;
+
+  private MetricsProtocol() {
+  }
+}
@@ -0,0 +1,280 @@
+package edu.berkeley.cs.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Receives live metric snapshots from functions, framed as in {@link MetricsProtocol}, and prints
+ * an aggregate line per interval of the shared timeline once every connected function has
+ * reported it (or a later interval has been reported, for stragglers).
+ *
+ * If sloP99Us is positive, the run is stopped once the largest per-function 99th percentile
+ * latency exceeds it for sloIntervals consecutive intervals; if maxErrorRate is positive, it is
+ * stopped once the errors in an interval exceed that fraction of the operations attempted.
+ * Stopping sends a STOP frame to every connected function, and to every function that connects
+ * later (e.g., in a later wave), so that those stop as soon as they start.
+ */
+public class MetricsServer implements Runnable {
+
+  // Accept backlog, sized for thousands of functions starting at once
+  private static final int BACKLOG = 4096;
+  private static final long SELECT_TIMEOUT_MS = 100;
+  // Intervals a straggler may lag behind before an interval is printed without it
+  private static final int MAX_LAG = 2;
+
+  private Selector selector;
+  private ServerSocketChannel serverSocket;
+  private int numConnections;
+  private int numClosed;
+  private double intervalS;
+  private long sloP99Ns;
+  private int sloIntervals;
+  private double maxErrorRate;
+  private Set<SocketChannel> clients = new HashSet<>();
+  private TreeMap<Integer, Row> rows = new TreeMap<>();
+  private int breaches;
+  private String stopReason;
+
+  private static class Connection {
+
+    private ByteBuffer header = ByteBuffer.allocate(MetricsProtocol.HEADER_SIZE);
+    private ByteBuffer payload;
+    private byte type;
+    private String function;
+  }
+
+  /**
+   * Totals over the snapshots of one interval.
+   */
+  private static class Row {
+
+    private Set<String> phases = new HashSet<>();
+    private int functions;
+    private long ops;
+    private long errors;
+    private long bytes;
+    private long maxP50Ns;
+    private long maxP99Ns;
+    private long maxNs;
+  }
+
+  public MetricsServer(int port, int numConnections, long intervalMs, long sloP99Us,
+      int sloIntervals, double maxErrorRate) throws IOException {
+    this.selector = Selector.open();
+    this.serverSocket = ServerSocketChannel.open();
+    this.serverSocket.bind(new InetSocketAddress("0.0.0.0", port), BACKLOG);
+    this.serverSocket.configureBlocking(false);
+    this.serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+    this.numConnections = numConnections;
+    this.intervalS = intervalMs / 1000.0;
+    this.sloP99Ns = sloP99Us * 1000;
+    this.sloIntervals = sloIntervals;
+    this.maxErrorRate = maxErrorRate;
+  }
+
+  @Override
+  public void run() {
+    try {
+      System.out.println("[MetricsServer] Waiting for connections");
+      while (serverSocket.isOpen()) {
+        selector.select(SELECT_TIMEOUT_MS);
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        Iterator<SelectionKey> iter = selectedKeys.iterator();
+        while (iter.hasNext()) {
+          SelectionKey key = iter.next();
+          if (key.isAcceptable()) {
+            SocketChannel client = serverSocket.accept();
+            if (client != null) {
+              client.configureBlocking(false);
+              client.register(selector, SelectionKey.OP_READ, new Connection());
+              clients.add(client);
+              if (stopReason != null) {
+                sendStop(client);
+              }
+            }
+          } else if (key.isReadable()) {
+            SocketChannel client = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            boolean open;
+            try {
+              open = receive(client, conn);
+            } catch (IOException e) {
+              System.err.println("[MetricsServer] Dropping function " + conn.function + ": "
+                  + e.getMessage());
+              open = false;
+            }
+            if (!open) {
+              drop(client);
+            }
+          }
+          iter.remove();
+        }
+        printRows(serverSocket.isOpen());
+      }
+      selector.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Consumes whatever the client has sent so far, and returns false once it has closed.
+   */
+  private boolean receive(SocketChannel client, Connection conn) throws IOException {
+    while (true) {
+      if (conn.header.hasRemaining()) {
+        if (client.read(conn.header) < 0) {
+          return false;
+        }
+        if (conn.header.hasRemaining()) {
+          return true;
+        }
+        conn.header.flip();
+        conn.type = conn.header.get();
+        int length = conn.header.getInt();
+        if (length < 0 || length > MetricsProtocol.MAX_FRAME_SIZE) {
+          throw new IOException("Invalid frame length: " + length);
+        }
+        conn.payload = ByteBuffer.allocate(length);
+      }
+      if (conn.payload.hasRemaining()) {
+        if (client.read(conn.payload) < 0) {
+          return false;
+        }
+        if (conn.payload.hasRemaining()) {
+          return true;
+        }
+      }
+      conn.header.clear();
+
+      switch (conn.type) {
+        case MetricsProtocol.HELLO:
+          conn.function = new String(conn.payload.array(), StandardCharsets.UTF_8);
+          break;
+        case MetricsProtocol.SNAPSHOT:
+          addSnapshot(conn.payload.array());
+          break;
+        case MetricsProtocol.CLOSE:
+          return false;
+        default:
+          throw new IOException("Invalid frame type: " + conn.type);
+      }
+    }
+  }
+
+  private void addSnapshot(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    int idx = in.readInt();
+    Row row = rows.get(idx);
+    if (row == null) {
+      row = new Row();
+      rows.put(idx, row);
+    }
+    row.phases.add(in.readUTF());
+    row.functions++;
+    row.ops += in.readLong();
+    row.errors += in.readLong();
+    row.bytes += in.readLong();
+    row.maxP50Ns = Math.max(row.maxP50Ns, in.readLong());
+    row.maxP99Ns = Math.max(row.maxP99Ns, in.readLong());
+    row.maxNs = Math.max(row.maxNs, in.readLong());
+  }
+
+  /**
+   * Prints the intervals that are complete, or all remaining ones if the run is over.
+   */
+  private void printRows(boolean running) throws IOException {
+    while (!rows.isEmpty()) {
+      Map.Entry<Integer, Row> first = rows.firstEntry();
+      Row row = first.getValue();
+      boolean complete = row.functions >= clients.size()
+          || rows.lastKey() - first.getKey() >= MAX_LAG;
+      if (running && !complete) {
+        return;
+      }
+      rows.pollFirstEntry();
+      System.out.println(String.format(Locale.ROOT,
+          "[MetricsServer] t=%.1fs %s: %d functions, %.1f ops/s, "
+              + "%.1f errors/s, %.1f MB/s, p50<=%sus, p99<=%sus, max=%sus",
+          (first.getKey() + 1) * intervalS, String.join(",", row.phases), row.functions,
+          row.ops / intervalS, row.errors / intervalS, row.bytes / intervalS / (1024 * 1024),
+          LatencyHistogram.toUs(row.maxP50Ns), LatencyHistogram.toUs(row.maxP99Ns),
+          LatencyHistogram.toUs(row.maxNs)));
+      if (running) {
+        checkLimits(row);
+      }
+    }
+  }
+
+  private void checkLimits(Row row) throws IOException {
+    if (stopReason != null) {
+      return;
+    }
+    if (sloP99Ns > 0 && row.ops > 0) {
+      breaches = row.maxP99Ns > sloP99Ns ? breaches + 1 : 0;
+      if (breaches >= sloIntervals) {
+        stop("p99 latency above " + LatencyHistogram.toUs(sloP99Ns) + "us for " + breaches
+            + " intervals");
+        return;
+      }
+    }
+    long attempted = row.ops + row.errors;
+    if (maxErrorRate > 0 && attempted > 0 && (double) row.errors / attempted > maxErrorRate) {
+      stop(String.format(Locale.ROOT, "error rate %.4f above %.4f", (double) row.errors / attempted,
+          maxErrorRate));
+    }
+  }
+
+  private void stop(String reason) throws IOException {
+    stopReason = reason;
+    System.out.println("[MetricsServer] Stopping the run: " + reason);
+    // A copy, as sendStop drops the clients it fails to reach
+    for (SocketChannel client : new ArrayList<>(clients)) {
+      sendStop(client);
+    }
+  }
+
+  /**
+   * Sends the STOP frame to client, and drops it if that fails, so that one broken connection
+   * neither keeps the other functions from being stopped nor ends the server.
+   */
+  private void sendStop(SocketChannel client) throws IOException {
+    byte[] msg = stopReason.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(MetricsProtocol.HEADER_SIZE + msg.length);
+    frame.put(MetricsProtocol.STOP).putInt(msg.length).put(msg).flip();
+    try {
+      while (frame.hasRemaining()) {
+        client.write(frame);
+      }
+    } catch (IOException e) {
+      Connection conn = (Connection) client.keyFor(selector).attachment();
+      System.err.println("[MetricsServer] Dropping function " + conn.function
+          + ", which could not be stopped: " + e.getMessage());
+      drop(client);
+    }
+  }
+
+  private void drop(SocketChannel client) throws IOException {
+    client.keyFor(selector).cancel();
+    client.close();
+    clients.remove(client);
+    if (++numClosed == numConnections) {
+      serverSocket.close();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package edu.berkeley.cs.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Merges the per-function latency histograms and interval time series of a run into cluster-wide
+ * results, as the ResultServer receives them. Files are parsed line by line on a pool of threads,
+ * and only the merged histograms and per-interval totals are kept in memory.
+ *
+ * For every object size and phase, {@link #finish} writes to dir:
+ * <ul>
+ * <li>crail_all_&lt;size&gt;_&lt;phase&gt;_histogram.txt: the merged latency distribution, in
+ * the same format as the per-function ones;</li>
+ * <li>crail_all_&lt;size&gt;_&lt;phase&gt;_intervals.txt: per interval of the shared timeline,
+ * its end time in seconds, the operations completed in it by all functions, their throughput in
+ * ops/s, the number of functions that completed any, and the largest 99th percentile and maximum
+ * latency among those functions in microseconds;</li>
+ * <li>crail_all_&lt;size&gt;_&lt;phase&gt;_summary.txt: for all functions and then for each wave,
+ * the number of functions, the operations completed, their throughput over the span of intervals
+ * in which any completed, and the 50th, 90th, 99th, 99.9th percentile and maximum latency in
+ * microseconds.</li>
+ * </ul>
+ */
+public class ResultMerger {
+
+  private static final Pattern RESULT_FILE = Pattern.compile(
+      "crail_(\\d+)_(\\d+)_([a-z_]+)_(histogram|intervals)\\.txt");
+
+  private final String dir;
+  private final ToIntFunction<String> waveOf;
+  private final double intervalS;
+  private final ExecutorService pool;
+  // Keyed by "<size>_<phase>"
+  private final Map<String, Phase> phases = new HashMap<>();
+
+  private static class Aggregate {
+
+    private LatencyHistogram histogram = new LatencyHistogram();
+    private int numFunctions;
+    // Per interval end time in ms: {ops, functions, largest p99 in ns, largest max in ns}
+    private TreeMap<Long, long[]> intervals = new TreeMap<>();
+
+    void addInterval(long endMs, long ops, long p99Ns, long maxNs) {
+      long[] row = intervals.computeIfAbsent(endMs, k -> new long[4]);
+      row[0] += ops;
+      row[1]++;
+      row[2] = Math.max(row[2], p99Ns);
+      row[3] = Math.max(row[3], maxNs);
+    }
+  }
+
+  private static class Phase {
+
+    private Aggregate all = new Aggregate();
+    private TreeMap<Integer, Aggregate> waves = new TreeMap<>();
+
+    Aggregate wave(int wave) {
+      return waves.computeIfAbsent(wave, w -> new Aggregate());
+    }
+  }
+
+  /**
+   * Merged results are written to dir; waveOf maps a lambda_id to the wave it was started in, and
+   * intervalMs is the functions' interval_ms.
+   */
+  public ResultMerger(String dir, ToIntFunction<String> waveOf, long intervalMs) {
+    this.dir = dir;
+    this.waveOf = waveOf;
+    this.intervalS = intervalMs / 1000.0;
+    this.pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Queues a received result file for merging; files other than histograms and interval series
+   * are ignored.
+   */
+  public void add(String path) {
+    Matcher m = RESULT_FILE.matcher(Paths.get(path).getFileName().toString());
+    if (!m.matches()) {
+      return;
+    }
+    String id = m.group(1);
+    String key = m.group(2) + "_" + m.group(3);
+    boolean histogram = m.group(4).equals("histogram");
+    pool.submit(() -> {
+      try {
+        if (histogram) {
+          mergeHistogram(path, id, key);
+        } else {
+          mergeIntervals(path, id, key);
+        }
+      } catch (IOException | RuntimeException e) {
+        System.err.println("[ResultMerger] Skipping " + path + ": " + e);
+      }
+    });
+  }
+
+  /**
+   * Waits for all queued files to be merged, and writes the merged results.
+   */
+  public void finish() throws IOException, InterruptedException {
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+      String prefix = Paths.get(dir, "crail_all_" + entry.getKey()).toString();
+      Phase phase = entry.getValue();
+      try (BufferedWriter out = new BufferedWriter(new FileWriter(prefix + "_histogram.txt"))) {
+        phase.all.histogram.writeDistribution(out);
+      }
+      try (BufferedWriter out = new BufferedWriter(new FileWriter(prefix + "_intervals.txt"))) {
+        writeIntervals(phase.all, out);
+      }
+      try (BufferedWriter out = new BufferedWriter(new FileWriter(prefix + "_summary.txt"))) {
+        writeSummary("all", phase.all, out);
+        for (Map.Entry<Integer, Aggregate> wave : phase.waves.entrySet()) {
+          writeSummary("wave" + wave.getKey(), wave.getValue(), out);
+        }
+      }
+      System.out.println("[ResultMerger] Merged " + phase.all.numFunctions + " functions into "
+          + prefix + "_*.txt");
+    }
+  }
+
+  private void mergeHistogram(String path, String id, String key) throws IOException {
+    LatencyHistogram h = new LatencyHistogram();
+    try (BufferedReader in = Files.newBufferedReader(Paths.get(path))) {
+      h.readDistribution(in);
+    }
+    synchronized (this) {
+      Phase phase = phase(key);
+      phase.all.histogram.add(h);
+      phase.all.numFunctions++;
+      Aggregate wave = phase.wave(waveOf.applyAsInt(id));
+      wave.histogram.add(h);
+      wave.numFunctions++;
+    }
+  }
+
+  private void mergeIntervals(String path, String id, String key) throws IOException {
+    Aggregate function = new Aggregate();
+    try (BufferedReader in = Files.newBufferedReader(Paths.get(path))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        // end time, ops, ops/s, p50, p90, p99, p99.9, max
+        String[] fields = line.split("\t");
+        if (fields.length != 8) {
+          continue;
+        }
+        function.addInterval(Math.round(Double.parseDouble(fields[0]) * 1000.0),
+            Long.parseLong(fields[1]), Math.round(Double.parseDouble(fields[5]) * 1000.0),
+            Math.round(Double.parseDouble(fields[7]) * 1000.0));
+      }
+    }
+    synchronized (this) {
+      Phase phase = phase(key);
+      Aggregate wave = phase.wave(waveOf.applyAsInt(id));
+      for (Map.Entry<Long, long[]> row : function.intervals.entrySet()) {
+        long[] v = row.getValue();
+        phase.all.addInterval(row.getKey(), v[0], v[2], v[3]);
+        wave.addInterval(row.getKey(), v[0], v[2], v[3]);
+      }
+    }
+  }
+
+  private Phase phase(String key) {
+    return phases.computeIfAbsent(key, k -> new Phase());
+  }
+
+  private void writeIntervals(Aggregate aggregate, BufferedWriter out) throws IOException {
+    for (Map.Entry<Long, long[]> row : aggregate.intervals.entrySet()) {
+      long[] v = row.getValue();
+      out.append(String.format(Locale.ROOT, "%.3f", row.getKey() / 1000.0)).append("\t")
+          .append(String.valueOf(v[0])).append("\t")
+          .append(String.format(Locale.ROOT, "%.1f", v[0] / intervalS)).append("\t")
+          .append(String.valueOf(v[1])).append("\t")
+          .append(LatencyHistogram.toUs(v[2])).append("\t")
+          .append(LatencyHistogram.toUs(v[3])).append("\n");
+    }
+  }
+
+  private void writeSummary(String name, Aggregate aggregate, BufferedWriter out)
+      throws IOException {
+    LatencyHistogram h = aggregate.histogram;
+    double spanS = aggregate.intervals.isEmpty() ? 0.0
+        : (aggregate.intervals.lastKey() - aggregate.intervals.firstKey()) / 1000.0 + intervalS;
+    long ops = h.getTotalCount();
+    out.append(name).append("\t")
+        .append(String.valueOf(aggregate.numFunctions)).append("\t")
+        .append(String.valueOf(ops)).append("\t")
+        .append(String.format(Locale.ROOT, "%.1f", spanS > 0 ? ops / spanS : 0.0)).append("\t")
+        .append(LatencyHistogram.toUs(h.getValueAtPercentile(50.0))).append("\t")
+        .append(LatencyHistogram.toUs(h.getValueAtPercentile(90.0))).append("\t")
+        .append(LatencyHistogram.toUs(h.getValueAtPercentile(99.0))).append("\t")
+        .append(LatencyHistogram.toUs(h.getValueAtPercentile(99.9))).append("\t")
+        .append(LatencyHistogram.toUs(h.getMax())).append("\n");
+  }
+}
@@ -0,0 +1,21 @@
+package edu.berkeley.cs.server;
+
+/**
+ * Framing of result files sent from functions to the ResultServer. Every frame is a one-byte type
+ * and a four-byte big-endian payload length followed by the payload. A function sends, for each
+ * result file, a FILE frame carrying the file's name in UTF-8, its contents in DATA frames of at
+ * most CHUNK_SIZE bytes, and an END frame; once it has sent all its files, it sends a CLOSE frame.
+ */
+public final class ResultProtocol {
+
+  public static final byte FILE = 1;
+  public static final byte DATA = 2;
+  public static final byte END = 3;
+  public static final byte CLOSE = 4;
+
+  public static final int HEADER_SIZE = 5;
+  public static final int CHUNK_SIZE = 64 * 1024;
+
+  private ResultProtocol() {
+  }
+}
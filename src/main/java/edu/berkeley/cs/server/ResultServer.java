@@ -1,26 +1,84 @@
 package edu.berkeley.cs.server;
 
-import java.io.BufferedReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
 
+/**
+ * Collects result files from functions on a single selector thread. Each connection is a stream
+ * of frames as described in {@link ResultProtocol}, which is parsed incrementally as data
+ * arrives; DATA payloads are transferred from the socket straight into the open file's channel
+ * with FileChannel.transferFrom, without being decoded or staged in buffers of the server's own.
+ */
 public class ResultServer implements Runnable {
-  private static final String EOF = "::";
-  private static final String EOC = "::::";
 
-  private ServerSocket serverSocket;
-  private AtomicInteger numClosed;
+  // Accept backlog, sized for thousands of functions finishing at once
+  private static final int BACKLOG = 4096;
+  private static final long REPORT_INTERVAL_MS = 1000;
+
+  private Selector selector;
+  private ServerSocketChannel serverSocket;
+  // Tells a connection with no data pending apart from a closed one, see transfer()
+  private ByteBuffer probe = ByteBuffer.allocate(1);
   private int numConnections;
+  private int numClosed;
+  private String resultDir;
+  private ResultMerger merger;
+  private long numFiles;
+  private long numBytes;
 
-  public ResultServer(int port, int numConnections) throws IOException {
-    this.serverSocket = new ServerSocket(port);
-    this.numClosed = new AtomicInteger(0);
+  /**
+   * Per-connection parsing state: the header of the current frame, the bytes of its payload
+   * still to come, and the open file with the offset to write its next bytes at.
+   */
+  private static class Connection {
+
+    private ByteBuffer header = ByteBuffer.allocate(ResultProtocol.HEADER_SIZE);
+    private byte type;
+    private int remaining;
+    private ByteBuffer name;
+    private String path;
+    private FileChannel file;
+    private long offset;
+  }
+
+  /**
+   * Result files are written to resultDir under their base names, or to the paths the functions
+   * send if resultDir is empty, and handed to merger (if not null) once complete.
+   */
+  public ResultServer(int port, int numConnections, String resultDir, ResultMerger merger)
+      throws IOException {
+    this.selector = Selector.open();
+    this.serverSocket = ServerSocketChannel.open();
+    this.serverSocket.bind(new InetSocketAddress("0.0.0.0", port), BACKLOG);
+    this.serverSocket.configureBlocking(false);
+    this.serverSocket.register(selector, SelectionKey.OP_ACCEPT);
     this.numConnections = numConnections;
+    this.resultDir = resultDir;
+    this.merger = merger;
+    if (!resultDir.isEmpty()) {
+      Files.createDirectories(Paths.get(resultDir));
+    }
+  }
+
+  public ResultServer(int port, int numConnections, String resultDir) throws IOException {
+    this(port, numConnections, resultDir, null);
+  }
+
+  public ResultServer(int port, int numConnections) throws IOException {
+    this(port, numConnections, "");
   }
 
   public ResultServer(int port) throws IOException {
@@ -29,35 +87,177 @@ public class ResultServer implements Runnable {
 
   @Override
   public void run() {
-    System.out.println("[ResultServer] Waiting for connections");
-    while (!serverSocket.isClosed()) {
-      try {
-        Socket socket = serverSocket.accept();
-        Thread t = new Thread(() -> {
-          try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String fileName;
-            while (!(fileName = in.readLine()).equals(EOC)) {
-              PrintWriter out = new PrintWriter(new FileWriter(fileName));
-              String line;
-              while (!(line = in.readLine()).equals(EOF)) {
-                out.write(line + "\n");
+    try {
+      System.out.println("[ResultServer] Waiting for connections");
+      long startMs = System.currentTimeMillis();
+      long lastReportMs = startMs;
+      long lastReportBytes = 0;
+      while (serverSocket.isOpen()) {
+        selector.select(REPORT_INTERVAL_MS);
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        Iterator<SelectionKey> iter = selectedKeys.iterator();
+        while (iter.hasNext()) {
+          SelectionKey key = iter.next();
+          if (key.isAcceptable()) {
+            SocketChannel client = serverSocket.accept();
+            if (client != null) {
+              client.configureBlocking(false);
+              client.register(selector, SelectionKey.OP_READ, new Connection());
+            }
+          } else if (key.isReadable()) {
+            SocketChannel client = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            try {
+              if (!receive(client, conn)) {
+                close(key, conn);
               }
-              out.close();
+            } catch (IOException e) {
+              System.err.println("[ResultServer] Dropping " + client.getRemoteAddress() + ": "
+                  + e.getMessage());
+              close(key, conn);
+            }
+          }
+          iter.remove();
+        }
+
+        long nowMs = System.currentTimeMillis();
+        if (nowMs - lastReportMs >= REPORT_INTERVAL_MS && numBytes != lastReportBytes) {
+          report("Ingest", numBytes - lastReportBytes, nowMs - lastReportMs);
+          lastReportMs = nowMs;
+          lastReportBytes = numBytes;
+        }
+      }
+      selector.close();
+      report("Received", numBytes, System.currentTimeMillis() - startMs);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Consumes whatever the client has sent so far, and returns false once the connection is done
+   * (the client sent CLOSE or disconnected).
+   */
+  private boolean receive(SocketChannel client, Connection conn) throws IOException {
+    while (true) {
+      if (conn.header.hasRemaining()) {
+        int n = client.read(conn.header);
+        if (n < 0) {
+          if (conn.header.position() > 0 || conn.file != null) {
+            throw new IOException("Connection closed mid-transfer");
+          }
+          System.err.println("[ResultServer] " + client.getRemoteAddress()
+              + " disconnected without sending CLOSE");
+          return false;
+        }
+        if (conn.header.hasRemaining()) {
+          return true;
+        }
+        conn.header.flip();
+        conn.type = conn.header.get();
+        conn.remaining = conn.header.getInt();
+        if (conn.remaining < 0 || conn.remaining > ResultProtocol.CHUNK_SIZE) {
+          throw new IOException("Invalid frame length: " + conn.remaining);
+        }
+        if (conn.type == ResultProtocol.FILE) {
+          conn.name = ByteBuffer.allocate(conn.remaining);
+        }
+      }
+
+      switch (conn.type) {
+        case ResultProtocol.FILE:
+          if (client.read(conn.name) < 0) {
+            throw new IOException("Connection closed mid-frame");
+          }
+          if (conn.name.hasRemaining()) {
+            return true;
+          }
+          String fileName = new String(conn.name.array(), StandardCharsets.UTF_8);
+          conn.path = outputPath(fileName);
+          conn.file = FileChannel.open(Paths.get(conn.path),
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+          conn.offset = 0;
+          conn.name = null;
+          break;
+        case ResultProtocol.DATA:
+          if (conn.file == null) {
+            throw new IOException("DATA frame outside of a file");
+          }
+          while (conn.remaining > 0) {
+            long n = transfer(client, conn);
+            if (n == 0) {
+              return true;
             }
-            in.close();
-            int n = numClosed.incrementAndGet();
-            if (n == numConnections) {
-              serverSocket.close();
+            conn.offset += n;
+            conn.remaining -= n;
+            numBytes += n;
+          }
+          break;
+        case ResultProtocol.END:
+          if (conn.file != null) {
+            conn.file.close();
+            conn.file = null;
+            ++numFiles;
+            if (merger != null) {
+              merger.add(conn.path);
             }
-          } catch (IOException e) {
-            e.printStackTrace();
           }
-        });
-        t.start();
-      } catch (IOException e) {
-        return;
+          break;
+        case ResultProtocol.CLOSE:
+          return false;
+        default:
+          throw new IOException("Invalid frame type: " + conn.type);
       }
+      conn.header.clear();
+    }
+  }
+
+  /**
+   * Moves up to the rest of the current DATA payload from client to the connection's file, and
+   * returns the number of bytes moved, 0 if the client has sent nothing more yet.
+   */
+  private long transfer(SocketChannel client, Connection conn) throws IOException {
+    long n = conn.file.transferFrom(client, conn.offset, conn.remaining);
+    if (n > 0) {
+      return n;
+    }
+    // transferFrom also moves nothing at end of stream, which a one-byte read tells apart
+    probe.clear();
+    int m = client.read(probe);
+    if (m < 0) {
+      throw new IOException("Connection closed mid-frame");
+    }
+    probe.flip();
+    while (probe.hasRemaining()) {
+      conn.file.write(probe, conn.offset);
+    }
+    return m;
+  }
+
+  private void close(SelectionKey key, Connection conn) throws IOException {
+    key.cancel();
+    key.channel().close();
+    if (conn.file != null) {
+      conn.file.close();
+    }
+    if (++numClosed == numConnections) {
+      serverSocket.close();
+    }
+  }
+
+  private void report(String what, long bytes, long elapsedMs) {
+    double mb = bytes / (1024.0 * 1024.0);
+    System.out.println(String.format(Locale.ROOT,
+        "[ResultServer] %s %.1f MB in %.1f s (%.1f MB/s), %d files, "
+            + "%d/%d functions done", what, mb, elapsedMs / 1000.0,
+        mb / Math.max(elapsedMs, 1) * 1000.0, numFiles, numClosed, numConnections));
+  }
+
+  private String outputPath(String fileName) {
+    if (resultDir.isEmpty()) {
+      return fileName;
     }
+    return Paths.get(resultDir, Paths.get(fileName).getFileName().toString()).toString();
   }
 }